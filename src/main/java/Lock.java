@@ -1,11 +0,0 @@
-public class Lock {
-    private boolean value = false;
-
-    void unlock() {
-        value = true;
-    }
-
-    boolean isLocked() {
-        return !value;
-    }
-}
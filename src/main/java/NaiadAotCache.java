@@ -0,0 +1,210 @@
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Mono AOT images of the assemblies of a naiad program, compiled once on the client and kept on HDFS under
+ * `local_resource_dir/aot-cache/hash`. The hash covers the mono version and the content of every assembly, so the
+ * images are compiled again whenever one of them changes. The images are world-readable so that they can be localized
+ * as public resources, which each node downloads once and shares between applications and runs.
+ */
+public class NaiadAotCache {
+    private static final Logger LOG = Logger.getLogger(NaiadAotCache.class.getName());
+
+    // Written last, so a directory without it is an interrupted compilation
+    static final String COMPLETE_MARKER = "_COMPLETE";
+    static final String IMAGE_SUFFIX = ".so";
+    private static final FsPermission DIR_PERMISSION = new FsPermission((short) 0755);
+    private static final FsPermission FILE_PERMISSION = new FsPermission((short) 0644);
+
+    private final FileSystem mFileSystem;
+    private final String mRoot;
+
+    NaiadAotCache(FileSystem fileSystem, String root) {
+        mFileSystem = fileSystem;
+        mRoot = root;
+    }
+
+    /**
+     * Assemblies named in the program, e.g. `mono NaiadProgram.exe arg1`, together with the dlls next to them.
+     */
+    static List<File> assembliesOf(String program) {
+        LinkedHashSet<File> assemblies = new LinkedHashSet<>();
+        for (String token : program.trim().split("\\s+")) {
+            File file = new File(token);
+            if (!(token.endsWith(".exe") || token.endsWith(".dll")) || !file.isFile()) {
+                continue;
+            }
+            assemblies.add(file.getAbsoluteFile());
+            File[] dlls = file.getAbsoluteFile().getParentFile().listFiles();
+            if (dlls != null) {
+                for (File dll : dlls) {
+                    if (dll.isFile() && dll.getName().endsWith(".dll")) {
+                        assemblies.add(dll.getAbsoluteFile());
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(assemblies);
+    }
+
+    private static String run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        StringBuilder output = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        int exitStatus = process.waitFor();
+        if (exitStatus != 0) {
+            throw new IOException("`" + command + "` exits with " + exitStatus + ": " + output);
+        }
+        return output.toString();
+    }
+
+    private static String hashOf(String monoVersion, List<File> assemblies) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(monoVersion.getBytes(Charset.forName("UTF-8")));
+            byte[] buffer = new byte[1 << 16];
+            for (File assembly : assemblies) {
+                digest.update(assembly.getName().getBytes(Charset.forName("UTF-8")));
+                FileInputStream in = new FileInputStream(assembly);
+                try {
+                    int len;
+                    while ((len = in.read(buffer)) > 0) {
+                        digest.update(buffer, 0, len);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Find the images of the given assemblies in the cache, compiling and uploading them if they are not there yet.
+     * Returns the directory holding the images.
+     */
+    Path prepare(String mono, List<File> assemblies) throws IOException, InterruptedException {
+        if (assemblies.isEmpty()) {
+            throw new IllegalArgumentException("No assembly is found to compile ahead of time.");
+        }
+        assemblies = new ArrayList<>(assemblies);
+        Collections.sort(assemblies, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        String monoVersion = run(Arrays.asList(mono, "--version"));
+        Path dir = new Path(mRoot + '/' + hashOf(monoVersion, assemblies));
+        if (mFileSystem.exists(new Path(dir, COMPLETE_MARKER))) {
+            LOG.info("Use AOT images in " + dir);
+            // Images cached by an older client may not be world-readable yet
+            publish(dir);
+            return dir;
+        }
+
+        LOG.info("Compile AOT images of " + assemblies.size() + " assemblies into " + dir);
+        File tmpDir = Files.createTempDirectory("naiad-aot").toFile();
+        try {
+            mFileSystem.delete(dir, true);
+            for (File assembly : assemblies) {
+                File image = new File(tmpDir, assembly.getName() + IMAGE_SUFFIX);
+                try {
+                    run(Arrays.asList(mono, "--aot=outfile=" + image.getPath(), assembly.getPath()));
+                } catch (IOException e) {
+                    LOG.warning("Skip " + assembly + " as it cannot be compiled ahead of time: " + e.getMessage());
+                    continue;
+                }
+                mFileSystem.copyFromLocalFile(false, true, new Path(image.getPath()), new Path(dir, image.getName()));
+            }
+            publish(dir);
+            mFileSystem.create(new Path(dir, COMPLETE_MARKER), true).close();
+        } finally {
+            File[] files = tmpDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            tmpDir.delete();
+        }
+        return dir;
+    }
+
+    /**
+     * Make the cache and the images in the given directory of it world-readable. Directories above the cache are left
+     * as they are, see {@link #isPublic}.
+     */
+    private void publish(Path dir) throws IOException {
+        mFileSystem.setPermission(new Path(mRoot), DIR_PERMISSION);
+        mFileSystem.setPermission(dir, DIR_PERMISSION);
+        for (FileStatus status : mFileSystem.listStatus(dir)) {
+            if (status.isFile()) {
+                mFileSystem.setPermission(status.getPath(), FILE_PERMISSION);
+            }
+        }
+    }
+
+    /**
+     * Whether the given file can be localized as a public resource, i.e. it is readable and every directory above it
+     * can be traversed by everyone. Otherwise the node manager refuses to localize it as such.
+     */
+    static boolean isPublic(FileSystem fileSystem, FileStatus file) throws IOException {
+        if (!file.getPermission().getOtherAction().implies(FsAction.READ)) {
+            return false;
+        }
+        for (Path dir = file.getPath().getParent(); dir != null; dir = dir.getParent()) {
+            if (!fileSystem.getFileStatus(dir).getPermission().getOtherAction().implies(FsAction.EXECUTE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The images in a directory returned by {@link #prepare}.
+     */
+    static List<FileStatus> imagesIn(FileSystem fileSystem, Path dir) throws IOException {
+        List<FileStatus> images = new ArrayList<>();
+        for (FileStatus status : fileSystem.listStatus(dir)) {
+            if (status.isFile() && status.getPath().getName().endsWith(IMAGE_SUFFIX)) {
+                images.add(status);
+            }
+        }
+        return images;
+    }
+}
@@ -1,5 +1,13 @@
 import org.apache.commons.cli.*;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
 import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.api.records.LocalResourceVisibility;
 import org.apache.hadoop.yarn.api.records.Priority;
 import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.client.api.AMRMClient;
@@ -7,14 +15,25 @@ import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
 import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
 import org.apache.hadoop.yarn.exceptions.YarnException;
+import org.apache.hadoop.yarn.util.ConverterUtils;
 import org.apache.hadoop.yarn.util.Records;
 
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.apache.hadoop.yarn.conf.YarnConfiguration.DEFAULT_YARN_APPLICATION_CLASSPATH;
+import static org.apache.hadoop.yarn.conf.YarnConfiguration.YARN_APPLICATION_CLASSPATH;
+
 public class NaiadApplicationMaster {
 
     private static final Logger LOG = Logger.getLogger(NaiadApplicationMaster.class.getName());
@@ -28,6 +47,8 @@ public class NaiadApplicationMaster {
     private int mContainerMemory = 0;
     private int mNumVirtualCores = 0;
     private int mAppPriority = 0;
+    private String mNodeLabel = null;
+    private boolean mIsExclusive = false;
 
     private boolean mIsTest = false;
     private String mProgram = "";
@@ -35,11 +56,54 @@ public class NaiadApplicationMaster {
     private int mNumProcesses = 0;
     private int mNumThreads = 0;
     private ArrayList<Pair<String, Integer>> mHosts = new ArrayList<>();
-
+    // Container size and threads per process of the hosts in `hosts`, which default to container_memory,
+    // container_vcores and num_thread. Each distinct container size is requested at its own priority
+    private HashMap<String, Resource> mHostCapabilities = new HashMap<>();
+    private HashMap<String, Integer> mHostThreads = new HashMap<>();
+    private ArrayList<Resource> mCapabilities = new ArrayList<>();
+
+    // Resource usage of naiad processes is recorded by NaiadContainerLauncher if a profile store is given
+    private String mProfileStore = null;
+    private String mAppMasterJar = null;
+    // Directory of the jar on HDFS, deleted once the application has finished as containers may be launched until then
+    private String mAppResourceDir = null;
+    // In rendezvous mode containers are launched as they arrive, and naiad processes get their peers later
+    private boolean mIsRendezvous = false;
+    private NaiadRendezvous mRendezvous = null;
+    private NaiadStatusServer mStatusServer = null;
+
+    // In probe mode the links between hosts are measured before naiad starts, and slow hosts are replaced
+    private boolean mIsProbe = false;
+    private long mProbeBytes = 0;
+    private double mProbeThreshold = 0;
+    private int mProbeRounds = 0;
+
+    // In elastic mode the gang is rescaled at checkpoints between `min_process` and `max_process` to follow the load
+    private boolean mIsElastic = false;
+    private int mMinProcesses = 0;
+    private int mMaxProcesses = 0;
+    private long mScaleIntervalMs = 0;
+    private long mStopTimeoutMs = 0;
+    private String mAotCache = null;
+    private HashMap<String, LocalResource> mContainerResources = new HashMap<>();
+    private HashMap<String, String> mContainerEnvironment = new HashMap<>();
+
+    // In exclusive mode each container takes an entire node and runs several naiad processes
+    private int mNumContainers = 0;
+    private Resource mExclusiveCapability = null;
+    // With `hosts`, the container of each host is sized to its node, or to its processes if the node is unknown, and
+    // each distinct size has its own priority
+    private HashMap<String, Resource> mNodeCapabilities = new HashMap<>();
+    private HashMap<String, Resource> mExclusiveHostCapabilities = new HashMap<>();
+    private ArrayList<Resource> mExclusiveCapabilities = new ArrayList<>();
+    private HashMap<String, Integer> mExclusiveHostProcesses = new HashMap<>();
+    private LinkedList<Integer> mExclusiveProcesses = new LinkedList<>();
+
+    private AMRMClient<AMRMClient.ContainerRequest> mRMSyncClient = null;
     private AMRMClientAsync<AMRMClient.ContainerRequest> mRMClient = null;
     private NMClientAsync mNMClient = null;
 
-    private NaiadApplicationMaster() throws IOException {
+    NaiadApplicationMaster() throws IOException {
     }
 
     private Options createAppMasterOptions() {
@@ -50,14 +114,43 @@ public class NaiadApplicationMaster {
         opts.addOption("container_memory", true, "Amount of memory in MB to be requested to run a worker node");
         opts.addOption("container_vcores", true, "Number of virtual cores to be requested to run a worker node");
         opts.addOption("app_priority", true, "A number to indicate the priority to run a worker node");
+        opts.addOption("node_label", true, "Node label expression that the nodes of worker containers must satisfy");
+        opts.addOption("exclusive", false,
+            "If given, each worker container takes an entire node and runs all the naiad processes of that node");
+        opts.addOption("node_capabilities", true,
+            "Capability of the node of each host in `hosts`, which its container takes in exclusive mode. Format(split by comma): host1:memory1:vcores1,host2:memory2:vcores2,...");
 
         opts.addOption("program", true, "Location of naiad executable");
         opts.addOption("port", true, "A starting port for naiad process. The port value will be increased automatically for the processes in the same host");
         opts.addOption("num_process", true,
             "Number of naiad processes. Either num_process or hosts should be declared");
         opts.addOption("hosts", true,
-            "Desired hosts and number of processes of each host. Format(split by comma): host1:num1,host2:num2,host3:num3,... Either num_process or hosts should be declared");
+            "Desired hosts and number of processes of each host, optionally with the container memory, vcores and threads per process of the host. "
+                + "Format(split by comma): host1:num1[:memory1:vcores1[:threads1]],host2:num2,... Either num_process or hosts should be declared");
         opts.addOption("num_thread", true, "Number of threads in each naiad process");
+        opts.addOption("profile_store", true, "Directory to record the resource usage of naiad processes");
+        opts.addOption("app_master_jar", true,
+            "HDFS path to the jar of application master, which is localized to worker containers when `profile_store` or `rendezvous` is given");
+        opts.addOption("app_resource_dir", true,
+            "HDFS directory of the resources of this application, which is deleted after application master unregisters");
+        opts.addOption("aot_cache", true, "HDFS directory with the mono AOT images to localize to worker containers");
+        opts.addOption("rendezvous", false,
+            "If given, each container is launched as soon as it is allocated and its naiad processes wait for the peers from application master");
+        opts.addOption("probe", false,
+            "If given, the links between hosts are probed before naiad starts and slow hosts are replaced. Needs `rendezvous`");
+        opts.addOption("probe_bytes", true, "Number of bytes sent over each link to measure its bandwidth. Default to 4194304");
+        opts.addOption("probe_threshold", true,
+            "A host is slow if the median latency or bandwidth of its links is this many times worse than that of a typical host. Default to 2");
+        opts.addOption("probe_rounds", true,
+            "Maximum number of probe rounds. Slow hosts found in the last round are kept. Default to 2");
+        opts.addOption("elastic", false,
+            "If given, the gang is stopped at a checkpoint and relaunched with more or fewer naiad processes when their cpu load is high or low. Needs `rendezvous`");
+        opts.addOption("min_process", true, "Minimum number of naiad processes in elastic mode. Default to num_process");
+        opts.addOption("max_process", true, "Maximum number of naiad processes in elastic mode. Default to num_process");
+        opts.addOption("scale_interval", true,
+            "Minimum number of seconds between the start of the gang and a rescaling in elastic mode. Default to 300");
+        opts.addOption("stop_timeout", true,
+            "Number of seconds the naiad processes have to stop at a checkpoint in elastic mode before the application fails. Default to 600");
         opts.addOption("test", false,
             "If given, containers will be requested and created, naiad program will not run but the command to run the program will be written to stdout.");
 
@@ -76,7 +169,7 @@ public class NaiadApplicationMaster {
         return num;
     }
 
-    private boolean init(String[] args) throws ParseException, IOException {
+    boolean init(String[] args) throws ParseException, IOException {
         // parse options
         CommandLine cliParser = new GnuParser().parse(createAppMasterOptions(), args);
 
@@ -108,6 +201,8 @@ public class NaiadApplicationMaster {
                 "Illegal priority for application. Specified priority: " + mAppPriority);
         }
 
+        mNodeLabel = cliParser.getOptionValue("node_label");
+
         mAppId = cliParser.getOptionValue("app_id", mAppId);
 
         if (!cliParser.hasOption("program")) {
@@ -120,11 +215,34 @@ public class NaiadApplicationMaster {
             try {
                 for (String pair : value.split(",")) {
                     String[] vals = pair.trim().split(":");
+                    if (vals.length != 2 && vals.length != 4 && vals.length != 5) {
+                        throw new IllegalArgumentException("Wrong number of fields in " + pair);
+                    }
                     mHosts.add(new Pair<>(vals[0], Integer.valueOf(vals[1])));
+                    // A host given more than once keeps its size unless it is given again
+                    Resource capability = mHostCapabilities.containsKey(vals[0])
+                        ? mHostCapabilities.get(vals[0]) : Resource.newInstance(mContainerMemory, mNumVirtualCores);
+                    if (vals.length > 2) {
+                        capability = Resource.newInstance(Integer.parseInt(vals[2]), Integer.parseInt(vals[3]));
+                    }
+                    if (capability.getMemory() <= 0 || capability.getVirtualCores() <= 0
+                        || (vals.length > 4 && Integer.parseInt(vals[4]) <= 0)) {
+                        throw new IllegalArgumentException("Non-positive container size or threads in " + pair);
+                    }
+                    if (mHostCapabilities.containsKey(vals[0]) && !mHostCapabilities.get(vals[0]).equals(capability)) {
+                        throw new IllegalArgumentException("Different container sizes are given to " + vals[0]);
+                    }
+                    mHostCapabilities.put(vals[0], capability);
+                    if (!mCapabilities.contains(capability)) {
+                        mCapabilities.add(capability);
+                    }
+                    if (vals.length > 4) {
+                        mHostThreads.put(vals[0], Integer.valueOf(vals[4]));
+                    }
                 }
             } catch (Exception e) {
                 throw new IllegalArgumentException(
-                    "Illegal hosts specified. Format should be `host1:num1,host2:num2,...`. Specified hosts: " + value, e);
+                    "Illegal hosts specified. Format should be `host1:num1[:memory1:vcores1[:threads1]],host2:num2,...`. Specified hosts: " + value, e);
             }
         }
 
@@ -159,8 +277,105 @@ public class NaiadApplicationMaster {
                 "Illegal port specified. Specified port: " + mPort);
         }
 
+        if (mNodeLabel != null && !mHosts.isEmpty()) {
+            throw new IllegalArgumentException("`node_label` cannot be used together with `hosts`.");
+        }
+
+        mIsExclusive = cliParser.hasOption("exclusive");
+        if (mIsExclusive) {
+            for (Pair<String, Integer> pair : mHosts) {
+                if (mExclusiveHostProcesses.containsKey(pair.getFirst())) {
+                    throw new IllegalArgumentException(
+                        "Host " + pair.getFirst() + " appears more than once in `hosts`, which is not allowed in exclusive mode.");
+                }
+                mExclusiveHostProcesses.put(pair.getFirst(), pair.getSecond());
+            }
+        }
+        if (cliParser.hasOption("node_capabilities")) {
+            String value = cliParser.getOptionValue("node_capabilities");
+            try {
+                for (String node : value.split(",")) {
+                    String[] vals = node.trim().split(":");
+                    if (vals.length != 3) {
+                        throw new IllegalArgumentException("Wrong number of fields in " + node);
+                    }
+                    Resource capability = Resource.newInstance(Integer.parseInt(vals[1]), Integer.parseInt(vals[2]));
+                    if (capability.getMemory() <= 0 || capability.getVirtualCores() <= 0) {
+                        throw new IllegalArgumentException("Non-positive node capability in " + node);
+                    }
+                    mNodeCapabilities.put(vals[0], capability);
+                }
+            } catch (Exception e) {
+                throw new IllegalArgumentException(
+                    "Illegal node capabilities specified. Format should be `host1:memory1:vcores1,host2:memory2:vcores2,...`. Specified node capabilities: " + value, e);
+            }
+        }
+        mNumContainers = mIsExclusive && !mHosts.isEmpty() ? mHosts.size() : mNumProcesses;
+
+        mProfileStore = cliParser.getOptionValue("profile_store");
+        mAppMasterJar = cliParser.getOptionValue("app_master_jar");
+        if (mProfileStore != null && mAppMasterJar == null) {
+            throw new IllegalArgumentException("`app_master_jar` needs to be specified to record resource usage.");
+        }
+
+        mAppResourceDir = cliParser.getOptionValue("app_resource_dir");
+        mAotCache = cliParser.getOptionValue("aot_cache");
+
         mIsTest = cliParser.hasOption("test");
 
+        mIsRendezvous = cliParser.hasOption("rendezvous");
+        if (mIsRendezvous && mIsTest) {
+            throw new IllegalArgumentException("`rendezvous` cannot be used together with `test`.");
+        }
+        if (mIsRendezvous && mAppMasterJar == null) {
+            throw new IllegalArgumentException("`app_master_jar` needs to be specified in rendezvous mode.");
+        }
+
+        mIsProbe = cliParser.hasOption("probe");
+        if (mIsProbe && !mIsRendezvous) {
+            throw new IllegalArgumentException("`probe` can only be used together with `rendezvous`.");
+        }
+        mProbeBytes = Long.parseLong(cliParser.getOptionValue("probe_bytes", "4194304"));
+        if (mProbeBytes <= 0) {
+            throw new IllegalArgumentException("Illegal number of probe bytes specified. Specified number: " + mProbeBytes);
+        }
+        mProbeThreshold = Double.parseDouble(cliParser.getOptionValue("probe_threshold", "2"));
+        if (mProbeThreshold <= 1) {
+            throw new IllegalArgumentException("Illegal probe threshold specified. Specified threshold: " + mProbeThreshold);
+        }
+        mProbeRounds = Integer.parseInt(cliParser.getOptionValue("probe_rounds", "2"));
+        if (mProbeRounds <= 0) {
+            throw new IllegalArgumentException("Illegal number of probe rounds specified. Specified number: " + mProbeRounds);
+        }
+
+        mIsElastic = cliParser.hasOption("elastic");
+        if (mIsElastic && !mIsRendezvous) {
+            throw new IllegalArgumentException("`elastic` can only be used together with `rendezvous`.");
+        }
+        if (mIsElastic && (mIsExclusive || !mHosts.isEmpty())) {
+            throw new IllegalArgumentException("`elastic` cannot be used together with `exclusive` or `hosts`.");
+        }
+        mMinProcesses = Integer.parseInt(cliParser.getOptionValue("min_process", String.valueOf(mNumProcesses)));
+        if (mMinProcesses <= 0 || mMinProcesses > mNumProcesses) {
+            throw new IllegalArgumentException(
+                "Illegal minimum number of processes specified. Specified number: " + mMinProcesses);
+        }
+        mMaxProcesses = Integer.parseInt(cliParser.getOptionValue("max_process", String.valueOf(mNumProcesses)));
+        if (mMaxProcesses < mNumProcesses) {
+            throw new IllegalArgumentException(
+                "Illegal maximum number of processes specified. Specified number: " + mMaxProcesses);
+        }
+        mScaleIntervalMs = Long.parseLong(cliParser.getOptionValue("scale_interval", "300")) * 1000;
+        if (mScaleIntervalMs < 0) {
+            throw new IllegalArgumentException(
+                "Illegal scale interval specified. Specified interval: " + mScaleIntervalMs / 1000);
+        }
+        mStopTimeoutMs = Long.parseLong(cliParser.getOptionValue("stop_timeout", "600")) * 1000;
+        if (mStopTimeoutMs <= 0) {
+            throw new IllegalArgumentException(
+                "Illegal stop timeout specified. Specified timeout: " + mStopTimeoutMs / 1000);
+        }
+
         return true;
     }
 
@@ -173,59 +388,344 @@ public class NaiadApplicationMaster {
         priority.setPriority(mAppPriority);
 
         Resource capability = Records.newRecord(Resource.class);
-        capability.setMemory(mContainerMemory);
-        capability.setVirtualCores(mNumVirtualCores);
+        if (mIsExclusive && host != null) {
+            Resource hostCapability = mExclusiveHostCapabilities.get(host);
+            capability.setMemory(hostCapability.getMemory());
+            capability.setVirtualCores(hostCapability.getVirtualCores());
+            priority.setPriority(mAppPriority + mExclusiveCapabilities.indexOf(hostCapability));
+        } else if (mIsExclusive) {
+            capability.setMemory(mExclusiveCapability.getMemory());
+            capability.setVirtualCores(mExclusiveCapability.getVirtualCores());
+        } else if (host != null) {
+            // The RM keeps one container size per priority, so hosts of different sizes are asked at different priorities
+            Resource hostCapability = mHostCapabilities.get(host);
+            capability.setMemory(hostCapability.getMemory());
+            capability.setVirtualCores(hostCapability.getVirtualCores());
+            priority.setPriority(mAppPriority + mCapabilities.indexOf(hostCapability));
+        } else {
+            capability.setMemory(mContainerMemory);
+            capability.setVirtualCores(mNumVirtualCores);
+        }
 
         // The second arg controls the hosts of containers
         if (host == null) {
-            return new AMRMClient.ContainerRequest(capability, null, null, priority, true);
+            return new AMRMClient.ContainerRequest(capability, null, null, priority, true, mNodeLabel);
         } else {
             return new AMRMClient.ContainerRequest(capability, new String[]{host}, null, priority, false);
         }
     }
 
-    private void run() throws YarnException, IOException, InterruptedException, ExecutionException {
+    /**
+     * Size the containers and decide how many naiad processes are packed into each of them. With `hosts` the container
+     * of a host takes its node as given by `node_capabilities`, up to the maximum capability, and fails fast if the
+     * processes of the host do not fit. The node of the application master and nodes of unknown capability only get a
+     * container sized to their processes. Otherwise containers take the maximum capability the RM allows, which is
+     * meant to be an entire node. This only holds on a cluster whose nodes are all as large as the maximum capability:
+     * smaller nodes never fit such a container, and larger nodes are still shared with other applications.
+     */
+    private void setupExclusiveContainers(Resource maximumCapability) {
+        mExclusiveCapability = maximumCapability;
+        if (mHosts.isEmpty()) {
+            int perNode = Math.max(1, Math.min(maximumCapability.getMemory() / Math.max(1, mContainerMemory),
+                maximumCapability.getVirtualCores() / mNumVirtualCores));
+            for (int left = mNumProcesses; left > 0; left -= perNode) {
+                mExclusiveProcesses.add(Math.min(left, perNode));
+            }
+            mNumContainers = mExclusiveProcesses.size();
+        } else {
+            String appMasterHost = System.getenv(ApplicationConstants.Environment.NM_HOST.name());
+            for (Pair<String, Integer> pair : mHosts) {
+                Resource capability = mHostCapabilities.get(pair.getFirst());
+                Resource hostCapability = Resource.newInstance(pair.getSecond() * capability.getMemory(),
+                    pair.getSecond() * capability.getVirtualCores());
+                if (hostCapability.getMemory() > maximumCapability.getMemory()
+                    || hostCapability.getVirtualCores() > maximumCapability.getVirtualCores()) {
+                    throw new IllegalArgumentException("Illegal exclusive container specified. Host " + pair.getFirst()
+                        + " gets " + pair.getSecond() + " naiad processes which need " + hostCapability
+                        + ", more than the maximum capability " + maximumCapability);
+                }
+                Resource nodeCapability = mNodeCapabilities.get(pair.getFirst());
+                if (nodeCapability == null) {
+                    LOG.warning("Capability of node " + pair.getFirst() + " is unknown, its container is sized to its processes");
+                } else if (hostCapability.getMemory() > nodeCapability.getMemory()
+                    || hostCapability.getVirtualCores() > nodeCapability.getVirtualCores()) {
+                    throw new IllegalArgumentException("Illegal exclusive container specified. Host " + pair.getFirst()
+                        + " gets " + pair.getSecond() + " naiad processes which need " + hostCapability
+                        + ", more than the node capability " + nodeCapability);
+                } else if (pair.getFirst().equals(appMasterHost)) {
+                    // The node can never be taken whole, as the container of the application master stays on it
+                    LOG.warning("Node " + pair.getFirst() + " runs the application master, its container is sized to its processes");
+                } else {
+                    hostCapability = Resource.newInstance(
+                        Math.min(nodeCapability.getMemory(), maximumCapability.getMemory()),
+                        Math.min(nodeCapability.getVirtualCores(), maximumCapability.getVirtualCores()));
+                    if (!hostCapability.equals(nodeCapability)) {
+                        LOG.warning("Node " + pair.getFirst() + " is larger than the maximum capability "
+                            + maximumCapability + ", the rest of it is still shared with other applications");
+                    }
+                }
+                mExclusiveHostCapabilities.put(pair.getFirst(), hostCapability);
+                if (!mExclusiveCapabilities.contains(hostCapability)) {
+                    mExclusiveCapabilities.add(hostCapability);
+                }
+            }
+        }
+        LOG.info("Exclusive mode: " + mNumContainers + " containers of "
+            + (mHosts.isEmpty() ? maximumCapability : mExclusiveHostCapabilities) + " for " + mNumProcesses + " naiad processes");
+    }
+
+    /**
+     * Number of naiad processes to run in a newly allocated container on the given host, or 0 if the container is
+     * not needed. Only called by the event loop of {@link NaiadRMCallbackHandler}.
+     */
+    int takeProcessesFor(String host) {
+        if (!mIsExclusive) {
+            return 1;
+        }
+        if (mHosts.isEmpty()) {
+            return mExclusiveProcesses.isEmpty() ? 0 : mExclusiveProcesses.poll();
+        }
+        Integer num = mExclusiveHostProcesses.remove(host);
+        return num == null ? 0 : num;
+    }
+
+    /**
+     * Create the client talking to the resource manager. Overridden by {@link NaiadSimulator} to plug in a synthetic RM.
+     */
+    AMRMClientAsync<AMRMClient.ContainerRequest> createRMClient(AMRMClientAsync.CallbackHandler handler) {
+        // The async client of hadoop 2.6 cannot update the blacklist, so keep the client it wraps
+        mRMSyncClient = AMRMClient.createAMRMClient();
+        return AMRMClientAsync.createAMRMClientAsync(mRMSyncClient, 1000, handler);
+    }
+
+    /**
+     * Current time in ms, for the scale interval and the downtime of rescalings. Overridden by {@link NaiadSimulator}
+     * to follow its virtual clock.
+     */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Keep the resource manager from placing containers on the given host again. Overridden by {@link NaiadSimulator}.
+     */
+    void blacklist(String host) {
+        mRMSyncClient.updateBlacklist(Collections.singletonList(host), null);
+    }
+
+    /**
+     * Whether released containers can be asked for again, which is not the case if they are bound to `hosts`.
+     */
+    boolean canReplaceContainers() {
+        return mHosts.isEmpty();
+    }
+
+    /**
+     * Ask for a container to replace a released one, which ran `numProcesses` naiad processes, or to grow the gang in
+     * elastic mode. Only called by the event loop of {@link NaiadRMCallbackHandler}.
+     */
+    void requestReplacement(int numProcesses) {
+        if (mIsExclusive) {
+            mExclusiveProcesses.add(numProcesses);
+        }
+        mRMClient.addContainerRequest(setupContainerAskForRMSpecific());
+    }
+
+    /**
+     * Change the number of naiad processes, one per container, when the gang is rescaled in elastic mode. Only called
+     * by the event loop of {@link NaiadRMCallbackHandler}.
+     */
+    void resize(int numProcesses) {
+        mNumProcesses = numProcesses;
+        mNumContainers = numProcesses;
+    }
+
+    /**
+     * Create the client talking to the node managers. Overridden by {@link NaiadSimulator} to plug in synthetic NMs.
+     */
+    NMClientAsync createNMClient(NMClientAsync.CallbackHandler handler) {
+        return NMClientAsync.createNMClientAsync(handler);
+    }
+
+    private static LocalResource localResourceOf(FileStatus fileStatus, LocalResourceVisibility visibility) {
+        LocalResource resource = Records.newRecord(LocalResource.class);
+        resource.setType(LocalResourceType.FILE);
+        resource.setVisibility(visibility);
+        resource.setResource(ConverterUtils.getYarnUrlFromPath(fileStatus.getPath()));
+        resource.setTimestamp(fileStatus.getModificationTime());
+        resource.setSize(fileStatus.getLen());
+        return resource;
+    }
+
+    /**
+     * Localize the jar of application master to worker containers, so that they can run NaiadContainerLauncher, and
+     * the mono AOT images, so that naiad processes skip JIT compilation. Overridden by {@link NaiadSimulator}, which
+     * has nothing to localize.
+     */
+    void setupContainerLaunchContext() throws IOException {
+        if (mProfileStore != null || mIsRendezvous) {
+            Path jarPath = new Path(mAppMasterJar);
+            mContainerResources.put("NaiadAppMaster.jar",
+                localResourceOf(jarPath.getFileSystem(mYarnConf).getFileStatus(jarPath), LocalResourceVisibility.APPLICATION));
+
+            StringBuilder classpath = new StringBuilder();
+            classpath.append("./*");
+            for (String s : mYarnConf.getStrings(YARN_APPLICATION_CLASSPATH, DEFAULT_YARN_APPLICATION_CLASSPATH)) {
+                classpath.append(":").append(s);
+            }
+            mContainerEnvironment.put("CLASSPATH", classpath.toString());
+        }
+
+        if (mAotCache != null) {
+            Path aotPath = new Path(mAotCache);
+            FileSystem fileSystem = aotPath.getFileSystem(mYarnConf);
+            List<FileStatus> images = NaiadAotCache.imagesIn(fileSystem, aotPath);
+            // Public images are downloaded once per node and shared by all containers and later runs on it, instead of
+            // once per application
+            LocalResourceVisibility visibility = LocalResourceVisibility.PUBLIC;
+            for (FileStatus image : images) {
+                if (!NaiadAotCache.isPublic(fileSystem, image)) {
+                    LOG.warning("AOT image " + image.getPath() + " or a directory above it is not world-readable, "
+                        + "AOT images are localized for this application only");
+                    visibility = LocalResourceVisibility.APPLICATION;
+                    break;
+                }
+            }
+            for (FileStatus image : images) {
+                mContainerResources.put(image.getPath().getName(), localResourceOf(image, visibility));
+            }
+            // Images are localized into the working directory of the container, where mono is told to look for them
+            mContainerEnvironment.put("MONO_ENV_OPTIONS", "--aot-path=$PWD");
+            LOG.info("Localize " + images.size() + " AOT images from " + mAotCache + " as " + visibility + " resources");
+        }
+    }
+
+    /**
+     * Delete the resources of this application once it has unregistered, when no container is launched any more. They
+     * are kept if the RM asks to shut down, as another attempt of application master may still need them.
+     */
+    private void deleteAppResourceDir() {
+        if (mAppResourceDir == null) {
+            return;
+        }
+        try {
+            Path dir = new Path(mAppResourceDir);
+            dir.getFileSystem(mYarnConf).delete(dir, true);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to delete the resources of the application in " + mAppResourceDir, e);
+        }
+    }
+
+    /**
+     * Write the final status to `app_id-status.txt` in the log directory, which is the only record of it if the RM has
+     * asked application master to shut down.
+     */
+    private void writeFinalStatus(FinalApplicationStatus status, String report) {
+        String path = mAppMasterLogDir + '/' + mAppId + "-status.txt";
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(path));
+            try {
+                writer.println("Status: " + status);
+                writer.print(report);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write the final status to " + path, e);
+        }
+    }
+
+    FinalApplicationStatus run() throws YarnException, IOException, InterruptedException, ExecutionException {
         LOG.info("Start App Master, log directory is " + mAppMasterLogDir);
 
+        if (!mIsTest) {
+            setupContainerLaunchContext();
+        }
+
         NaiadRMCallbackHandler mRMClientListener = new NaiadRMCallbackHandler(this);
-        mRMClient = AMRMClientAsync.createAMRMClientAsync(1000, mRMClientListener);
+        mRMClient = createRMClient(mRMClientListener);
         mRMClient.init(mYarnConf);
         mRMClient.start();
 
-        NaiadNMCallbackHandler mContainerListener = new NaiadNMCallbackHandler();
-        mNMClient = NMClientAsync.createNMClientAsync(mContainerListener);
+        NaiadNMCallbackHandler mContainerListener = new NaiadNMCallbackHandler(mRMClientListener);
+        mNMClient = createNMClient(mContainerListener);
         mNMClient.init(mYarnConf);
         mNMClient.start();
 
         // Register with ResourceManager
         LOG.info("registerApplicationMaster started");
-        mRMClient.registerApplicationMaster("", 0, "");
+        RegisterApplicationMasterResponse response;
+        mStatusServer = new NaiadStatusServer(mRMClientListener);
+        if (mIsRendezvous) {
+            mRendezvous = new NaiadRendezvous(mRMClientListener);
+            response = mRMClient.registerApplicationMaster(mRendezvous.getHost(), mRendezvous.getPort(),
+                mStatusServer.getAddress());
+        } else {
+            response = mRMClient.registerApplicationMaster("", 0, mStatusServer.getAddress());
+        }
         LOG.info("registerApplicationMaster done");
 
-        // Ask RM to start `mNumContainer` containers, each is a worker node
-        LOG.info("Ask RM for " + mNumProcesses + " containers");
+        if (mIsExclusive) {
+            try {
+                setupExclusiveContainers(response.getMaximumResourceCapability());
+            } catch (IllegalArgumentException e) {
+                // Fail the application rather than wait for containers that can never be allocated
+                mRMClient.unregisterApplicationMaster(FinalApplicationStatus.FAILED, e.getMessage(), null);
+                deleteAppResourceDir();
+                mRMClientListener.stop();
+                if (mRendezvous != null) {
+                    mRendezvous.stop();
+                }
+                mStatusServer.stop();
+                throw e;
+            }
+        }
+
+        // Ask RM to start `mNumContainers` containers, each is a worker node
+        LOG.info("Ask RM for " + mNumContainers + " containers");
         if (mHosts.isEmpty()) {
-            for (int i = 0; i < mNumProcesses; i++) {
+            for (int i = 0; i < mNumContainers; i++) {
                 mRMClient.addContainerRequest(setupContainerAskForRMSpecific());
             }
         } else {
             for (Pair<String, Integer> pair : mHosts) {
-                for (int i = 0; i < pair.getSecond(); i++) {
+                for (int i = 0; i < (mIsExclusive ? 1 : pair.getSecond()); i++) {
                     mRMClient.addContainerRequest(setupContainerAskForRMSpecific(pair.getFirst()));
                 }
             }
         }
 
-        FinalApplicationStatus status = mRMClientListener.getFinalNumSuccess() == mNumProcesses
+        FinalApplicationStatus status = mRMClientListener.getFinalNumSuccess() == mNumContainers
             ? FinalApplicationStatus.SUCCEEDED : FinalApplicationStatus.FAILED;
 
-        mRMClient.unregisterApplicationMaster(status, mRMClientListener.getStatusReport(), null);
+        if (mRMClientListener.isShutdownRequested()) {
+            status = FinalApplicationStatus.KILLED;
+        }
+        writeFinalStatus(status, mRMClientListener.getStatusReport());
+        if (mRMClientListener.isShutdownRequested()) {
+            // The RM has dropped this attempt, so it cannot unregister. Stopping the NM client stops the containers
+            mNMClient.stop();
+            mRMClient.stop();
+        } else {
+            mRMClient.unregisterApplicationMaster(status, mRMClientListener.getStatusReport(), null);
+            deleteAppResourceDir();
+        }
+        mRMClientListener.stop();
+        if (mRendezvous != null) {
+            mRendezvous.stop();
+        }
+        mStatusServer.stop();
+        return status;
     }
 
     int getNumProcesses() {
         return mNumProcesses;
     }
 
+    int getNumContainers() {
+        return mNumContainers;
+    }
+
     AMRMClientAsync<AMRMClient.ContainerRequest> getRMClient() {
         return mRMClient;
     }
@@ -242,6 +742,14 @@ public class NaiadApplicationMaster {
         return mNumThreads;
     }
 
+    /**
+     * Number of threads of each naiad process on the given host, which may be set per host in `hosts`.
+     */
+    int getNumThreadsFor(String host) {
+        Integer numThreads = mHostThreads.get(host);
+        return numThreads == null ? mNumThreads : numThreads;
+    }
+
     String getProgram() {
         return mProgram;
     }
@@ -254,10 +762,73 @@ public class NaiadApplicationMaster {
         return mAppMasterLogDir;
     }
 
+    String getProfileStore() {
+        return mProfileStore;
+    }
+
+    Map<String, LocalResource> getContainerResources() {
+        return mContainerResources;
+    }
+
+    Map<String, String> getContainerEnvironment() {
+        return mContainerEnvironment;
+    }
+
     boolean isTest() {
         return mIsTest;
     }
 
+    boolean isRendezvous() {
+        return mIsRendezvous;
+    }
+
+    boolean isProbe() {
+        return mIsProbe;
+    }
+
+    long getProbeBytes() {
+        return mProbeBytes;
+    }
+
+    double getProbeThreshold() {
+        return mProbeThreshold;
+    }
+
+    int getProbeRounds() {
+        return mProbeRounds;
+    }
+
+    boolean isElastic() {
+        return mIsElastic;
+    }
+
+    int getMinProcesses() {
+        return mMinProcesses;
+    }
+
+    int getMaxProcesses() {
+        return mMaxProcesses;
+    }
+
+    long getScaleIntervalMs() {
+        return mScaleIntervalMs;
+    }
+
+    long getStopTimeoutMs() {
+        return mStopTimeoutMs;
+    }
+
+    /**
+     * Size of the worker containers outside exclusive mode and `hosts`.
+     */
+    Resource getContainerCapability() {
+        return Resource.newInstance(mContainerMemory, mNumVirtualCores);
+    }
+
+    NaiadRendezvous getRendezvous() {
+        return mRendezvous;
+    }
+
     static public void main(String[] args) {
         LOG.info("Start running NaiadApplicationMaster");
         try {
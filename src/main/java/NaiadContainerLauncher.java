@@ -0,0 +1,383 @@
+import org.apache.commons.cli.*;
+import org.apache.hadoop.conf.Configuration;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs one naiad process inside a worker container. The process is sampled from /proc while it runs, and its peak
+ * resident memory and cpu usage are written to the {@link NaiadProfileStore} when it exits.
+ *
+ * In rendezvous mode the launcher starts as soon as the container is allocated. It binds the port the naiad process
+ * will listen on, registers with the {@link NaiadRendezvous} of the application master and waits for the process id
+ * and the peers, which are appended to the command as `-n`, `-p` and `-h`. While waiting, it answers link probes on
+ * that port and carries out the probes asked by the application master, see {@link NaiadLinkProbe}.
+ *
+ * While the process runs, its cpu usage is reported to the application master, which may stop it at a checkpoint to
+ * rescale the gang. The process is expected to checkpoint and exit 0 on SIGTERM. The launcher then waits for the new
+ * process id and peers and relaunches it, and the process resumes from its checkpoint.
+ */
+public class NaiadContainerLauncher {
+    private static final Logger LOG = Logger.getLogger(NaiadContainerLauncher.class.getName());
+
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    // USER_HZ, the unit of utime and stime in /proc/[pid]/stat, is 100 on all the platforms we run on
+    private static final double CLOCK_TICKS_PER_SECOND = 100;
+    // How often the cpu usage is reported to the application master in rendezvous mode
+    static final int LOAD_INTERVAL_MS = 10000;
+
+    private String mProfileStore = null;
+    private String mProfileKey = "";
+    private String mProfileId = "";
+    private String mProgram = "";
+    private int mNumThreads = 0;
+    private String mCommand = "";
+
+    private String mRendezvous = null;
+    private String mContainerId = "";
+    private int mIndex = 0;
+    private int mPort = 0;
+    private NaiadRendezvousClient mClient = null;
+    private volatile boolean mStopped = false;
+    private boolean mFinishing = false;
+    private int mNumRuns = 0;
+
+    private long mPeakRssKB = 0;
+    private double mPeakCpuCores = 0;
+    private long mCpuTicks = 0;
+
+    private Options createLauncherOptions() {
+        Options opts = new Options();
+        opts.addOption("help", false, "Print Usage");
+        opts.addOption("profile_store", true, "Where to record the resource usage of the naiad process");
+        opts.addOption("profile_id", true,
+            "Name of the record of this run, usually `app_id-process_id`. Not used in rendezvous mode, where the record of every run is named `container_id-index-run`");
+        opts.addOption("program", true, "The naiad program with its arguments, recorded along with the usage");
+        opts.addOption("num_thread", true, "Number of threads in the naiad process, part of the key of the records");
+        opts.addOption("rendezvous", true, "Address `host:port` of the rendezvous service of application master");
+        opts.addOption("container_id", true, "Id of the container, used to register with the rendezvous service");
+        opts.addOption("index", true, "Index of the naiad process in the container, used to register with the rendezvous service");
+        opts.addOption("port", true,
+            "Port that the naiad process prefers to listen on in rendezvous mode. Any free port is taken if it is in use or 0. Default to 0");
+        return opts;
+    }
+
+    private void printUsage() {
+        new HelpFormatter().printHelp("NaiadContainerLauncher [options] -- command", createLauncherOptions());
+    }
+
+    private boolean init(String[] args) throws ParseException {
+        CommandLine cliParser = new GnuParser().parse(createLauncherOptions(), args, true);
+
+        if (args.length == 0 || cliParser.hasOption("help")) {
+            printUsage();
+            return false;
+        }
+
+        mProfileStore = cliParser.getOptionValue("profile_store");
+        mProfileId = cliParser.getOptionValue("profile_id", mProfileId);
+        mProgram = cliParser.getOptionValue("program", mProgram);
+        mNumThreads = Integer.parseInt(cliParser.getOptionValue("num_thread", "1"));
+        mProfileKey = NaiadProfileStore.keyOf(mProgram, mNumThreads);
+
+        mRendezvous = cliParser.getOptionValue("rendezvous");
+        if (mRendezvous != null && !cliParser.hasOption("container_id")) {
+            throw new IllegalArgumentException("`container_id` needs to be specified in rendezvous mode.");
+        }
+        mContainerId = cliParser.getOptionValue("container_id", mContainerId);
+        mIndex = Integer.parseInt(cliParser.getOptionValue("index", "0"));
+        mPort = Integer.parseInt(cliParser.getOptionValue("port", "0"));
+        if (!(mPort >= 0 && mPort < 65536)) {
+            throw new IllegalArgumentException("Illegal port specified. Specified port: " + mPort);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String arg : cliParser.getArgs()) {
+            if (builder.length() != 0) {
+                builder.append(' ');
+            }
+            builder.append(arg);
+        }
+        if (builder.length() == 0) {
+            throw new IllegalArgumentException("No command to launch is given.");
+        }
+        mCommand = builder.toString();
+        return true;
+    }
+
+    private static int pidOf(Process process) {
+        try {
+            // Process.pid() exists since Java 9, before that the pid is a private field of UNIXProcess
+            Method method = Process.class.getMethod("pid");
+            return ((Long) method.invoke(process)).intValue();
+        } catch (NoSuchMethodException e) {
+            try {
+                Field field = process.getClass().getDeclaredField("pid");
+                field.setAccessible(true);
+                return field.getInt(process);
+            } catch (Exception ignore) {
+                return -1;
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Update the peak memory and cpu usage of the process. Returns false if the process has gone.
+     */
+    private boolean sample(int pid, long intervalMs) {
+        try {
+            BufferedReader status = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+            try {
+                String line;
+                while ((line = status.readLine()) != null) {
+                    if (line.startsWith("VmHWM:") || line.startsWith("VmRSS:")) {
+                        mPeakRssKB = Math.max(mPeakRssKB, Long.parseLong(line.substring(6).trim().split("\\s+")[0]));
+                    }
+                }
+            } finally {
+                status.close();
+            }
+
+            BufferedReader stat = new BufferedReader(new FileReader("/proc/" + pid + "/stat"));
+            try {
+                // The command name in the second field may contain spaces, so count the fields after it
+                String line = stat.readLine();
+                String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+                long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+                if (intervalMs > 0) {
+                    double cores = (ticks - mCpuTicks) / CLOCK_TICKS_PER_SECOND / (intervalMs / 1000.0);
+                    mPeakCpuCores = Math.max(mPeakCpuCores, cores);
+                }
+                mCpuTicks = ticks;
+            } finally {
+                stat.close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static ServerSocket bind(int port) throws IOException {
+        if (port > 0) {
+            try {
+                return new ServerSocket(port);
+            } catch (IOException e) {
+                LOG.info("Port " + port + " is in use, take any free port instead");
+            }
+        }
+        return new ServerSocket(0);
+    }
+
+    /**
+     * Bind the port the naiad process will listen on and answer link probes on it.
+     */
+    private static ServerSocket reserve(int port) throws IOException {
+        ServerSocket reserved = bind(port);
+        NaiadLinkProbe.serve(reserved);
+        return reserved;
+    }
+
+    /**
+     * Wait for the process id and the peers and complete the command with them. The port is held until then, so that
+     * no other process takes it in between. Returns false if the application master goes away or tells the stopped
+     * process to finish before that.
+     */
+    private boolean awaitStart(ServerSocket reserved, String command) throws IOException {
+        try {
+            String[] words;
+            while ((words = mClient.awaitCommand()) != null && words[0].equals(NaiadRendezvous.PROBE)) {
+                LOG.info("Probe the links to " + (words.length - 2) + " hosts");
+                mClient.send(NaiadLinkProbe.probeAll(words));
+            }
+            if (words != null && words[0].equals(NaiadRendezvous.FINISH)) {
+                LOG.info("Naiad has finished while the process was stopped at a checkpoint");
+                mFinishing = true;
+                return false;
+            }
+            if (words == null || !words[0].equals(NaiadRendezvous.START)) {
+                LOG.severe("Application master goes away before the gang is complete");
+                return false;
+            }
+
+            // START process_id num_processes host1:port1 host2:port2 ...
+            StringBuilder builder = new StringBuilder(command);
+            builder.append(" -n ").append(words[2]).append(" -p ").append(words[1]).append(" -h");
+            for (int i = 3; i < words.length; i++) {
+                builder.append(' ').append(words[i]);
+            }
+            mCommand = builder.toString();
+            // Relaunched processes may get the id of another process of an earlier run
+            mProfileId = mContainerId + '-' + mIndex + '-' + mNumRuns++;
+            return true;
+        } finally {
+            reserved.close();
+        }
+    }
+
+    /**
+     * Register with the application master and run the naiad process once the gang is complete. When the process is
+     * stopped at a checkpoint for rescaling, the port is held again and the process is relaunched with the new peers.
+     */
+    private int rendezvous() throws IOException, InterruptedException {
+        ServerSocket reserved = reserve(mPort);
+        int port = reserved.getLocalPort();
+        mClient = new NaiadRendezvousClient(mRendezvous);
+        try {
+            mClient.register(mContainerId, mIndex, port);
+            LOG.info("Registered with " + mRendezvous + " as " + mContainerId + '-' + mIndex + " on port " + port);
+            String command = mCommand;
+            int exitStatus = -1;
+            while (awaitStart(reserved, command)) {
+                exitStatus = runProcess();
+                if (!mStopped) {
+                    return exitStatus;
+                }
+                reserved = reserve(port);
+                port = reserved.getLocalPort();
+                mClient.send(NaiadRendezvous.STOPPED + ' ' + exitStatus + ' ' + port);
+                LOG.info("Stopped with exit status " + exitStatus + ", wait to be started again on port " + port);
+            }
+            return mFinishing ? exitStatus : -1;
+        } finally {
+            mClient.close();
+        }
+    }
+
+    /**
+     * Destroy the process when the application master asks it to stop at a checkpoint. Reading from the connection is
+     * handed back to {@link #rendezvous()} after that. A process that has exited before `STOP` arrives has finished on
+     * its own and is not regarded as stopped, even if its exit is noticed only later.
+     */
+    private void listen(final Process process) {
+        Thread listener = new Thread("NaiadContainerLauncher listener") {
+            public void run() {
+                try {
+                    String[] words;
+                    while ((words = mClient.awaitCommand()) != null) {
+                        if (words[0].equals(NaiadRendezvous.STOP)) {
+                            try {
+                                LOG.info("Naiad process has exited with " + process.exitValue() + " before it is stopped");
+                            } catch (IllegalThreadStateException e) {
+                                LOG.info("Stop the naiad process at a checkpoint for rescaling");
+                                mStopped = true;
+                                process.destroy();
+                            }
+                            return;
+                        }
+                        LOG.warning("Unexpected command from application master: " + words[0]);
+                    }
+                } catch (IOException ignore) {
+                }
+            }
+        };
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private int runProcess() throws IOException, InterruptedException {
+        LOG.info("Launch `" + mCommand + "`");
+        final Process process = new ProcessBuilder("bash", "-c", "exec " + mCommand).inheritIO().start();
+        Thread destroyer = new Thread() {
+            public void run() {
+                process.destroy();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(destroyer);
+        mStopped = false;
+        if (mClient != null) {
+            listen(process);
+        }
+
+        long startTime = System.currentTimeMillis();
+        int pid = pidOf(process);
+        if (pid < 0) {
+            LOG.warning("Cannot find the pid of the naiad process, its resource usage will not be recorded");
+        }
+        mPeakRssKB = 0;
+        mPeakCpuCores = 0;
+        mCpuTicks = 0;
+        long lastSample = startTime;
+        long lastLoad = startTime;
+        long loadTicks = 0;
+        sample(pid, 0);
+        while (true) {
+            try {
+                int exitStatus = process.exitValue();
+                long wallMs = System.currentTimeMillis() - startTime;
+                // Relaunches in rendezvous mode add a hook each, so drop the one of the exited process
+                try {
+                    Runtime.getRuntime().removeShutdownHook(destroyer);
+                } catch (IllegalStateException ignore) {
+                    // The JVM is shutting down already
+                }
+                if (pid >= 0) {
+                    record(exitStatus, wallMs);
+                }
+                return exitStatus;
+            } catch (IllegalThreadStateException ignore) {
+            }
+            Thread.sleep(SAMPLE_INTERVAL_MS);
+            long now = System.currentTimeMillis();
+            if (pid >= 0) {
+                sample(pid, now - lastSample);
+                if (mClient != null && now - lastLoad >= LOAD_INTERVAL_MS) {
+                    // LOAD milli_cores, the cpu usage since the last report
+                    long milliCores = (long) ((mCpuTicks - loadTicks) / CLOCK_TICKS_PER_SECOND / ((now - lastLoad) / 1000.0) * 1000);
+                    mClient.send(NaiadRendezvous.LOAD + ' ' + milliCores);
+                    loadTicks = mCpuTicks;
+                    lastLoad = now;
+                }
+            }
+            lastSample = now;
+        }
+    }
+
+    private int run() throws IOException, InterruptedException {
+        return mRendezvous == null ? runProcess() : rendezvous();
+    }
+
+    private void record(int exitStatus, long wallMs) {
+        if (mProfileStore == null) {
+            return;
+        }
+        Properties record = new Properties();
+        record.setProperty(NaiadProfileStore.PEAK_RSS_MB, String.valueOf((mPeakRssKB + 1023) / 1024));
+        record.setProperty(NaiadProfileStore.CPU_CORES,
+            String.format("%.3f", wallMs == 0 ? 0 : mCpuTicks / CLOCK_TICKS_PER_SECOND / (wallMs / 1000.0)));
+        record.setProperty(NaiadProfileStore.PEAK_CPU_CORES, String.format("%.3f", mPeakCpuCores));
+        record.setProperty(NaiadProfileStore.WALL_MS, String.valueOf(wallMs));
+        record.setProperty(NaiadProfileStore.NUM_THREAD, String.valueOf(mNumThreads));
+        record.setProperty(NaiadProfileStore.EXIT_STATUS, String.valueOf(exitStatus));
+        record.setProperty(NaiadProfileStore.STOPPED, String.valueOf(mStopped));
+        record.setProperty(NaiadProfileStore.PROGRAM, mProgram);
+        try {
+            new NaiadProfileStore(mProfileStore, new Configuration()).write(mProfileKey, mProfileId, record);
+            LOG.info("Record resource usage of " + mProfileId + ": " + record);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to record resource usage to " + mProfileStore, e);
+        }
+    }
+
+    static public void main(String[] args) {
+        try {
+            NaiadContainerLauncher launcher = new NaiadContainerLauncher();
+            if (!launcher.init(args)) {
+                System.exit(0);
+            }
+            System.exit(launcher.run());
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error running NaiadContainerLauncher", e);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the links between the hosts of a gang before naiad starts. Every launcher serves probes on the port it has
+ * reserved for its naiad process, and the probing launcher of each host measures the latency and bandwidth to the
+ * other hosts when told by the application master. See {@link NaiadRendezvous} for the protocol around it.
+ */
+public class NaiadLinkProbe {
+    private static final Logger LOG = Logger.getLogger(NaiadLinkProbe.class.getName());
+
+    private static final int NUM_PINGS = 10;
+    private static final int TIMEOUT_MS = 10000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Reported for a link that cannot be measured
+    static final String FAILED = "-1:0";
+
+    /**
+     * Answer probes on the given socket until it is closed.
+     */
+    static void serve(final ServerSocket serverSocket) {
+        Thread acceptor = new Thread("NaiadLinkProbe acceptor") {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread echo = new Thread("NaiadLinkProbe " + socket.getRemoteSocketAddress()) {
+                            public void run() {
+                                answer(socket);
+                            }
+                        };
+                        echo.setDaemon(true);
+                        echo.start();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void answer(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            for (int i = 0; i < NUM_PINGS; i++) {
+                out.write(in.read());
+                out.flush();
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (long left = in.readLong(); left > 0; ) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (len < 0) {
+                    throw new IOException("Probe ends early");
+                }
+                left -= len;
+            }
+            out.write(0);
+            out.flush();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error answering probe from " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Measure the link to `host:port`. Returns `latency_us:bandwidth_mbps`, where the latency is the median round trip
+     * of small messages and the bandwidth is measured by sending `numBytes`, or {@link #FAILED}.
+     */
+    private static String probe(String address, long numBytes) {
+        int split = address.lastIndexOf(':');
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, split), Integer.parseInt(address.substring(split + 1))),
+                TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            long[] roundTrips = new long[NUM_PINGS];
+            for (int i = 0; i < NUM_PINGS; i++) {
+                long start = System.nanoTime();
+                out.write(i);
+                out.flush();
+                if (in.read() != i) {
+                    throw new IOException("Illegal answer to ping");
+                }
+                roundTrips[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(roundTrips);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long start = System.nanoTime();
+            out.writeLong(numBytes);
+            for (long left = numBytes; left > 0; left -= buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, left));
+            }
+            out.flush();
+            if (in.read() != 0) {
+                throw new IOException("Illegal answer to bulk transfer");
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return roundTrips[NUM_PINGS / 2] / 1000 + ":" + (long) (numBytes * 8 / 1e6 / seconds);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Failed to probe " + address, e);
+            return FAILED;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Carry out `PROBE num_bytes host1:port1 host2:port2 ...` and return the answer to the application master,
+     * `PROBED host1:port1:latency_us:bandwidth_mbps ...`.
+     */
+    static String probeAll(String[] command) {
+        long numBytes = Long.parseLong(command[1]);
+        StringBuilder builder = new StringBuilder(NaiadRendezvous.PROBED);
+        for (int i = 2; i < command.length; i++) {
+            builder.append(' ').append(command[i]).append(':').append(probe(command[i], numBytes));
+        }
+        return builder.toString();
+    }
+}
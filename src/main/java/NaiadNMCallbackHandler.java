@@ -10,6 +10,12 @@ import java.util.logging.Logger;
 public class NaiadNMCallbackHandler implements NMClientAsync.CallbackHandler {
     static private final Logger LOG = Logger.getLogger(NaiadNMCallbackHandler.class.getName());
 
+    private NaiadRMCallbackHandler mRMHandler = null;
+
+    public NaiadNMCallbackHandler(NaiadRMCallbackHandler rmHandler) {
+        mRMHandler = rmHandler;
+    }
+
     public void onContainerStarted(ContainerId containerId, Map<String, ByteBuffer> map) {
         LOG.info("Container with id " + containerId + " starts.");
     }
@@ -24,6 +30,7 @@ public class NaiadNMCallbackHandler implements NMClientAsync.CallbackHandler {
 
     public void onStartContainerError(ContainerId containerId, Throwable throwable) {
         LOG.log(Level.SEVERE, "Error thrown while starting container with id " + containerId, throwable);
+        mRMHandler.onStartContainerError(containerId);
     }
 
     public void onGetContainerStatusError(ContainerId containerId, Throwable throwable) {
@@ -0,0 +1,120 @@
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Resource usage profiles of naiad processes. Each run of a process leaves one record under
+ * `profile_store/key/app_id-process_id`, or `profile_store/key/container_id-index-run` in rendezvous mode where a
+ * process may run several times, where the key is derived from the program with its arguments and the number of
+ * threads of the process, as the usage of a process grows with its threads. The store can be on HDFS or on the local
+ * file system.
+ */
+public class NaiadProfileStore {
+    static final String PEAK_RSS_MB = "peak_rss_mb";
+    static final String CPU_CORES = "cpu_cores";
+    static final String PEAK_CPU_CORES = "peak_cpu_cores";
+    static final String WALL_MS = "wall_ms";
+    static final String NUM_THREAD = "num_thread";
+    static final String EXIT_STATUS = "exit_status";
+    static final String STOPPED = "stopped";
+    static final String PROGRAM = "program";
+
+    private final Path mRoot;
+    private final FileSystem mFileSystem;
+
+    NaiadProfileStore(String root, Configuration conf) throws IOException {
+        mRoot = new Path(root);
+        mFileSystem = mRoot.getFileSystem(conf);
+    }
+
+    static String keyOf(String program, int numThreads) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                .digest((program.trim() + '\n' + numThreads).getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                builder.append(String.format("%02x", digest[i]));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    void write(String key, String id, Properties record) throws IOException {
+        Path path = new Path(new Path(mRoot, key), id);
+        FSDataOutputStream out = mFileSystem.create(path, true);
+        try {
+            record.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    List<Properties> readAll(String key) throws IOException {
+        Path dir = new Path(mRoot, key);
+        List<Properties> records = new ArrayList<>();
+        if (!mFileSystem.exists(dir)) {
+            return records;
+        }
+        for (FileStatus status : mFileSystem.listStatus(dir)) {
+            if (!status.isFile()) {
+                continue;
+            }
+            Properties record = new Properties();
+            FSDataInputStream in = mFileSystem.open(status.getPath());
+            try {
+                record.load(in);
+            } finally {
+                in.close();
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * The records of the runs that exited 0 on their own. A failed run, or a process stopped at a checkpoint for
+     * rescaling, which exits 0 as well, ends early and does not show the usage of a full run.
+     */
+    static List<Properties> succeeded(List<Properties> records) {
+        List<Properties> succeeded = new ArrayList<>();
+        for (Properties record : records) {
+            if ("0".equals(record.getProperty(EXIT_STATUS)) && !"true".equals(record.getProperty(STOPPED))) {
+                succeeded.add(record);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * The `percentile`-th percentile (nearest rank) of a field over the records that have it, or -1 if none has it.
+     */
+    static double percentile(List<Properties> records, String field, double percentile) {
+        List<Double> values = new ArrayList<>();
+        for (Properties record : records) {
+            String value = record.getProperty(field);
+            if (value != null) {
+                values.add(Double.parseDouble(value));
+            }
+        }
+        if (values.isEmpty()) {
+            return -1;
+        }
+        Collections.sort(values);
+        int rank = (int) Math.ceil(percentile / 100 * values.size());
+        return values.get(Math.min(values.size(), Math.max(1, rank)) - 1);
+    }
+}
@@ -1,153 +1,1051 @@
 import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.ContainerStatus;
 import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
 import org.apache.hadoop.yarn.util.Records;
 import org.mortbay.util.SingletonList;
 
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.apache.hadoop.yarn.api.ApplicationConstants.Environment.JAVA_HOME;
+
+/**
+ * The core of the application master. RM and NM callbacks only post events to a single-threaded event loop, which
+ * owns all the state of the gang of containers, so the state is never touched by two threads and no callback blocks.
+ *
+ * Naiad processes are launched once the whole gang is allocated. In rendezvous mode each container is launched as
+ * soon as it is allocated instead, and its processes register with {@link NaiadRendezvous}. They are started with the
+ * peers once all of them have registered. In probe mode the links between the hosts are measured first, and the
+ * containers on slow hosts are replaced before naiad starts.
+ *
+ * In elastic mode the gang follows the cpu load reported by the processes. When the load stays high or low, all the
+ * processes are stopped at a checkpoint, containers are released or requested, and the processes are started again
+ * with the new peers. The decisions and their downtime are part of the status report.
+ *
+ * Containers on hosts that the RM reports unusable are moved before they are lost. Until naiad starts they are simply
+ * replaced. Once it runs, in elastic mode, replacements are asked for first and the gang is rescaled to the same size
+ * without the unusable hosts. A shutdown request from the RM fails the gang, see {@link NaiadApplicationMaster#run}.
+ */
 public class NaiadRMCallbackHandler implements AMRMClientAsync.CallbackHandler {
     private static final Logger LOG = Logger.getLogger(NaiadRMCallbackHandler.class.getName());
 
+    // Mean cpu load of the processes, relative to the vcores of their containers, above or below which the gang is
+    // rescaled in elastic mode, and the load the new size aims at
+    private static final double SCALE_UP_LOAD = 0.8;
+    private static final double SCALE_DOWN_LOAD = 0.3;
+    private static final double TARGET_LOAD = 0.6;
+    // Number of load reports in a row, from all the processes, that must be out of band before the gang is rescaled
+    private static final int SCALE_ROUNDS = 3;
+
+    private enum State {
+        ALLOCATING,  // Waiting for the whole gang of containers, or for all processes to register in rendezvous mode
+        PROBING,     // Measuring the links between hosts in probe mode
+        RUNNING,     // Naiad processes are launched, or started with the peers in rendezvous mode
+        RESCALING,   // Waiting for all processes to stop at a checkpoint in elastic mode, or to move off unusable hosts
+        FINISHED     // All containers completed, or the application master failed
+    }
+
     private NaiadApplicationMaster mAppMaster = null;
-    private final Lock finalResultLock = new Lock();
-    private final Lock cmdLock = new Lock();
 
-    private int mNumCompletedContainers = 0;
-    private int mNumSuccessContainers = 0;
+    private final ScheduledExecutorService mEventLoop = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "NaiadApplicationMaster event loop");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
-    private ArrayList<Thread> mContainerThreads = new ArrayList<Thread>();
+    // Only touched by the event loop
+    private State mState = State.ALLOCATING;
+    private LinkedHashMap<ContainerId, Container> mContainers = new LinkedHashMap<>();
+    private HashMap<ContainerId, Integer> mContainerProcesses = new HashMap<>();
+    private LinkedHashMap<String, Integer> mHostProcesses = new LinkedHashMap<>();
     private HashMap<String, Integer> mHostCmdCounter = new HashMap<>();
-
+    private HashSet<ContainerId> mReleasedContainers = new HashSet<>();
     private String mCommandTemplate = "";
+    private HashMap<ContainerId, NaiadRendezvous.Peer[]> mPeers = new HashMap<>();
+    private int mNumRegisteredProcesses = 0;
+    private int mNumProbeRounds = 0;
+    private LinkedHashMap<String, NaiadRendezvous.Peer> mProbers = new LinkedHashMap<>();
+    // Step of the probe round in progress, and the probers that have answered in this step
+    private int mProbeStep = 0;
+    private int mNumProbed = 0;
+    // Latency in us and bandwidth in Mbps of the links between hosts, by source and destination host
+    private LinkedHashMap<String, LinkedHashMap<String, double[]>> mLinks = new LinkedHashMap<>();
+    private LinkedHashSet<String> mReplacedHosts = new LinkedHashSet<>();
+    // Latest cpu usage in milli cores of the running processes, and when they were started
+    private HashMap<NaiadRendezvous.Peer, Long> mLoads = new HashMap<>();
+    // The processes that have reported since the last round, and the rounds in a row above or below the band
+    private HashSet<NaiadRendezvous.Peer> mFreshLoads = new HashSet<>();
+    private int mHighRounds = 0;
+    private int mLowRounds = 0;
+    private long mStartTime = 0;
+    // The rescaling in progress, if mScaleStartTime is not 0
+    private long mScaleStartTime = 0;
+    private int mScaleFrom = 0;
+    private int mScaleTarget = 0;
+    private String mScaleReason = "";
+    private HashSet<NaiadRendezvous.Peer> mStoppingPeers = new HashSet<>();
+    // Processes asked to stop for a rescaling that was dropped as naiad finished, which are told to finish instead
+    private HashSet<NaiadRendezvous.Peer> mFinishingPeers = new HashSet<>();
+    private ScheduledFuture<?> mStopTimeout = null;
+    private int mNumRescales = 0;
+    // Hosts reported unusable by the RM, and the containers asked for to replace those on them during a rescaling
+    private LinkedHashSet<String> mUnusableHosts = new LinkedHashSet<>();
+    private int mNumSpareRequests = 0;
+
+    // Only written by the event loop, read by other threads for reporting
+    private volatile int mNumAllocatedContainers = 0;
+    private volatile int mNumCompletedContainers = 0;
+    private volatile int mNumSuccessContainers = 0;
+    private volatile String mProbeReport = "";
+    private volatile String mLoadReport = "";
+    private volatile String mScaleReport = "";
+    private volatile String mHealthReport = "";
+    private volatile boolean mShutdownRequested = false;
+    private final CountDownLatch mFinished = new CountDownLatch(1);
 
     public NaiadRMCallbackHandler(NaiadApplicationMaster appMaster) {
         mAppMaster = appMaster;
     }
 
-    public int getFinalNumSuccess() throws InterruptedException {
-        if (finalResultLock.isLocked()) {
-            synchronized (finalResultLock) {
-                if (finalResultLock.isLocked()) {
-                    finalResultLock.wait();
+    private void post(String name, Runnable event) {
+        postDelayed(name, event, 0);
+    }
+
+    /**
+     * Handle the event on the event loop after `delayMs`. Returns null if the event loop is stopped.
+     */
+    private ScheduledFuture<?> postDelayed(final String name, final Runnable event, long delayMs) {
+        try {
+            return mEventLoop.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        event.run();
+                    } catch (Exception e) {
+                        LOG.log(Level.SEVERE, "Error handling event " + name, e);
+                    }
                 }
-            }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.warning("Event " + name + " is dropped as the event loop is stopped");
+            return null;
         }
+    }
+
+    public int getFinalNumSuccess() throws InterruptedException {
+        mFinished.await();
         return mNumSuccessContainers;
     }
 
+    /**
+     * Block until the events posted so far are handled. Used by {@link SimulatedResourceManager} to keep its virtual
+     * clock in step with the application master.
+     */
+    void drain() throws InterruptedException {
+        try {
+            mEventLoop.submit(new Runnable() {
+                public void run() {
+                }
+            }).get();
+        } catch (RejectedExecutionException ignore) {
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stop the event loop once the application master has unregistered.
+     */
+    void stop() {
+        mEventLoop.shutdown();
+    }
+
     public String getStatusReport() {
-        return String.format("Requested: %d, Allocated: %d, Completed: %d, Succeeded: %d, Failed: %d\n", mAppMaster.getNumProcesses(), mContainerThreads.size(),
-            mNumCompletedContainers, mNumSuccessContainers, mNumCompletedContainers - mNumSuccessContainers);
+        return String.format("Requested: %d, Allocated: %d, Completed: %d, Succeeded: %d, Failed: %d\n", mAppMaster.getNumContainers(), mNumAllocatedContainers,
+            mNumCompletedContainers, mNumSuccessContainers, mNumCompletedContainers - mNumSuccessContainers) + mProbeReport + mLoadReport + mScaleReport + mHealthReport;
+    }
+
+    int getNumCompletedContainers() {
+        return mNumCompletedContainers;
+    }
+
+    boolean isShutdownRequested() {
+        return mShutdownRequested;
+    }
+
+    public void onContainersCompleted(final List<ContainerStatus> list) {
+        post("ContainersCompleted", new Runnable() {
+            public void run() {
+                handleContainersCompleted(list);
+            }
+        });
+    }
+
+    public void onContainersAllocated(final List<Container> list) {
+        post("ContainersAllocated", new Runnable() {
+            public void run() {
+                handleContainersAllocated(list);
+            }
+        });
+    }
+
+    /**
+     * Called by {@link NaiadNMCallbackHandler} when a container cannot be started. The container is released, and its
+     * completion is counted as a failure.
+     */
+    void onStartContainerError(final ContainerId containerId) {
+        post("StartContainerError", new Runnable() {
+            public void run() {
+                if (mContainers.containsKey(containerId)) {
+                    mAppMaster.getRMClient().releaseAssignedContainer(containerId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by {@link NaiadRendezvous} when a naiad process registers. Once all processes of the gang have
+     * registered, every one of them is sent its id and the peers.
+     */
+    void onProcessRegistered(final NaiadRendezvous.Peer peer) {
+        post("ProcessRegistered", new Runnable() {
+            public void run() {
+                Integer numProcesses = mContainerProcesses.get(peer.containerId);
+                // Spares for the containers on unusable hosts may register while the others stop
+                if ((mState != State.ALLOCATING && mState != State.RESCALING) || numProcesses == null || peer.index < 0
+                    || peer.index >= numProcesses) {
+                    LOG.warning("Unexpected registration of naiad process " + peer);
+                    peer.close();
+                    return;
+                }
+                NaiadRendezvous.Peer[] peers = mPeers.get(peer.containerId);
+                if (peers == null) {
+                    peers = new NaiadRendezvous.Peer[numProcesses];
+                    mPeers.put(peer.containerId, peers);
+                }
+                if (peers[peer.index] == null) {
+                    mNumRegisteredProcesses += 1;
+                } else {
+                    peers[peer.index].close();
+                }
+                peers[peer.index] = peer;
+                LOG.info("Naiad process " + peer + " is registered on port " + peer.port + ", registered processes: "
+                    + mNumRegisteredProcesses);
+                if (mState == State.ALLOCATING && isGangRegistered()) {
+                    onGangRegistered();
+                }
+            }
+        });
+    }
+
+    void onProcessMessage(final NaiadRendezvous.Peer peer, final String line) {
+        post("ProcessMessage", new Runnable() {
+            public void run() {
+                String[] words = line.trim().split(" ");
+                if (words[0].equals(NaiadRendezvous.PROBED) && handleProbed(peer, words)) {
+                    return;
+                }
+                if (words[0].equals(NaiadRendezvous.LOAD) && handleLoad(peer, words)) {
+                    return;
+                }
+                if (words[0].equals(NaiadRendezvous.STOPPED) && handleStopped(peer, words)) {
+                    return;
+                }
+                LOG.warning("Unexpected message from naiad process " + peer + ": " + line);
+            }
+        });
+    }
+
+    void onProcessDisconnected(final NaiadRendezvous.Peer peer) {
+        post("ProcessDisconnected", new Runnable() {
+            public void run() {
+                NaiadRendezvous.Peer[] peers = mPeers.get(peer.containerId);
+                if (mState != State.ALLOCATING || peers == null || peers[peer.index] != peer) {
+                    LOG.info("Naiad process " + peer + " is disconnected");
+                    return;
+                }
+                // Its container is about to complete, which fails the gang
+                LOG.warning("Naiad process " + peer + " is disconnected before all processes are registered");
+                peers[peer.index] = null;
+                mNumRegisteredProcesses -= 1;
+            }
+        });
+    }
+
+    /**
+     * Whether the given process is registered in the current gang.
+     */
+    private boolean isRegistered(NaiadRendezvous.Peer peer) {
+        NaiadRendezvous.Peer[] peers = mPeers.get(peer.containerId);
+        return peers != null && peer.index < peers.length && peers[peer.index] == peer;
+    }
+
+    /**
+     * PROBED host1:port1:latency_us:bandwidth_mbps. The next step of the round starts once every prober has answered.
+     */
+    private boolean handleProbed(NaiadRendezvous.Peer peer, String[] words) {
+        Container container = mContainers.get(peer.containerId);
+        if (mState != State.PROBING || container == null || mProbers.get(container.getNodeId().getHost()) != peer) {
+            return false;
+        }
+        LinkedHashMap<String, double[]> links = mLinks.get(container.getNodeId().getHost());
+        for (int i = 1; i < words.length; i++) {
+            String[] fields = words[i].split(":");
+            links.put(fields[0], new double[]{Double.parseDouble(fields[2]), Double.parseDouble(fields[3])});
+        }
+        mNumProbed += 1;
+        if (mNumProbed < mProbers.size()) {
+            return true;
+        }
+        if (mProbeStep < mProbers.size() - 1) {
+            probeStep();
+        } else {
+            evaluateLinks();
+        }
+        return true;
+    }
+
+    /**
+     * LOAD milli_cores. Reports left from before a rescaling are dropped. The load is evaluated in rounds, once every
+     * process has reported, and the gang is rescaled only when {@link #SCALE_ROUNDS} rounds in a row are out of band.
+     * A gang of which some containers have completed is finishing and is not rescaled.
+     */
+    private boolean handleLoad(NaiadRendezvous.Peer peer, String[] words) {
+        if (!isRegistered(peer)) {
+            return false;
+        }
+        if (mState != State.RUNNING) {
+            return true;
+        }
+        mLoads.put(peer, Long.parseLong(words[1]));
+        mFreshLoads.add(peer);
+        int numProcesses = numProcessesInContainers();
+        if (mFreshLoads.size() < numProcesses) {
+            return true;
+        }
+        mFreshLoads.clear();
+        long milliCores = 0;
+        for (long load : mLoads.values()) {
+            milliCores += load;
+        }
+        double load = milliCores / 1000.0 / numProcesses / mAppMaster.getContainerCapability().getVirtualCores();
+        mLoadReport = String.format("Processes: %d, mean load: %.2f of %d vcores\n", numProcesses, load,
+            mAppMaster.getContainerCapability().getVirtualCores());
+        mHighRounds = load > SCALE_UP_LOAD ? mHighRounds + 1 : 0;
+        mLowRounds = load < SCALE_DOWN_LOAD ? mLowRounds + 1 : 0;
+        if (mAppMaster.isElastic() && mNumCompletedContainers == 0
+            && (mHighRounds >= SCALE_ROUNDS || mLowRounds >= SCALE_ROUNDS)
+            && mAppMaster.currentTimeMillis() - mStartTime >= mAppMaster.getScaleIntervalMs()) {
+            evaluateLoad(numProcesses, load);
+        }
+        return true;
+    }
+
+    /**
+     * Rescale the gang if the mean load is above {@link #SCALE_UP_LOAD} or below {@link #SCALE_DOWN_LOAD}. The new size
+     * brings the load to {@link #TARGET_LOAD} within `min_process` and `max_process`, and grows only as far as the
+     * headroom of the queue allows.
+     */
+    private void evaluateLoad(int numProcesses, double load) {
+        if (load <= SCALE_UP_LOAD && load >= SCALE_DOWN_LOAD) {
+            return;
+        }
+        int target = (int) Math.ceil(numProcesses * load / TARGET_LOAD);
+        target = Math.max(mAppMaster.getMinProcesses(), Math.min(mAppMaster.getMaxProcesses(), target));
+        if (target > numProcesses) {
+            Resource capability = mAppMaster.getContainerCapability();
+            Resource headroom = mAppMaster.getRMClient().getAvailableResources();
+            int fit = headroom == null ? 0 : Math.min(headroom.getMemory() / Math.max(1, capability.getMemory()),
+                headroom.getVirtualCores() / capability.getVirtualCores());
+            if (target - numProcesses > fit) {
+                LOG.fine("Queue headroom " + headroom + " only fits " + fit + " more containers");
+                target = numProcesses + fit;
+            }
+        }
+        if (target != numProcesses) {
+            rescale(numProcesses, target, String.format("at mean load %.2f", load));
+        }
+    }
+
+    /**
+     * Ask all the processes to stop at a checkpoint. The gang is resized once all of them have stopped, and fails if
+     * they have not stopped within `stop_timeout`.
+     */
+    private void rescale(int numProcesses, int target, String reason) {
+        LOG.info("Rescale the gang from " + numProcesses + " to " + target + " naiad processes " + reason);
+        mState = State.RESCALING;
+        mScaleStartTime = mAppMaster.currentTimeMillis();
+        final long scaleStartTime = mScaleStartTime;
+        mStopTimeout = postDelayed("stop timeout", new Runnable() {
+            public void run() {
+                handleStopTimeout(scaleStartTime);
+            }
+        }, mAppMaster.getStopTimeoutMs());
+        mScaleFrom = numProcesses;
+        mScaleTarget = target;
+        mScaleReason = reason;
+        mStoppingPeers.clear();
+        for (NaiadRendezvous.Peer[] peers : mPeers.values()) {
+            for (NaiadRendezvous.Peer peer : peers) {
+                mStoppingPeers.add(peer);
+                peer.send(NaiadRendezvous.STOP);
+            }
+        }
+    }
+
+    /**
+     * STOPPED exit_status port. A process that does not exit cleanly at the checkpoint fails the gang, as the
+     * checkpoint cannot be trusted.
+     */
+    private boolean handleStopped(NaiadRendezvous.Peer peer, String[] words) {
+        if (mFinishingPeers.remove(peer)) {
+            peer.send(NaiadRendezvous.FINISH);
+            return true;
+        }
+        if (mState != State.RESCALING || !mStoppingPeers.remove(peer)) {
+            return false;
+        }
+        int exitStatus = Integer.parseInt(words[1]);
+        peer.port = Integer.parseInt(words[2]);
+        if (exitStatus != 0) {
+            LOG.severe("Naiad process " + peer + " exits with " + exitStatus + " at the checkpoint");
+            mScaleReport += String.format("Rescale %d: %d -> %d processes %s failed, %s exits with %d\n",
+                mNumRescales + 1, mScaleFrom, mScaleTarget, mScaleReason, peer, exitStatus);
+            finish();
+        } else if (mStoppingPeers.isEmpty()) {
+            regroup();
+        }
+        return true;
+    }
+
+    /**
+     * The processes that have not answered STOPPED by now may hang at the checkpoint, which cannot be trusted then.
+     */
+    private void handleStopTimeout(long scaleStartTime) {
+        if (mState != State.RESCALING || mScaleStartTime != scaleStartTime || mStoppingPeers.isEmpty()) {
+            return;
+        }
+        LOG.severe("Naiad processes " + mStoppingPeers + " have not stopped at the checkpoint within "
+            + mAppMaster.getStopTimeoutMs() / 1000 + " s");
+        mScaleReport += String.format("Rescale %d: %d -> %d processes %s failed, %d processes not stopped within %d s\n",
+            mNumRescales + 1, mScaleFrom, mScaleTarget, mScaleReason, mStoppingPeers.size(),
+            mAppMaster.getStopTimeoutMs() / 1000);
+        finish();
+    }
+
+    /**
+     * A container completes cleanly while the gang is asked to stop, so naiad has finished on its own before the STOP
+     * reached its processes. The rescaling is dropped, and the processes that stop at the checkpoint all the same are
+     * told to finish rather than wait to be started again.
+     */
+    private void dropRescale(ContainerId containerId) {
+        LOG.info("Container " + containerId + " completes while the gang is stopping, naiad finishes and the rescaling is dropped");
+        mScaleReport += String.format("Rescale %d: %d -> %d processes %s dropped, naiad finishes\n",
+            mNumRescales + 1, mScaleFrom, mScaleTarget, mScaleReason);
+        mState = State.RUNNING;
+        mScaleStartTime = 0;
+        cancelStopTimeout();
+        for (NaiadRendezvous.Peer[] peers : mPeers.values()) {
+            for (NaiadRendezvous.Peer peer : peers) {
+                if (peer == null || peer.containerId.equals(containerId)) {
+                    continue;
+                }
+                if (mStoppingPeers.contains(peer)) {
+                    mFinishingPeers.add(peer);
+                } else {
+                    peer.send(NaiadRendezvous.FINISH);
+                }
+            }
+        }
+        mStoppingPeers.clear();
+    }
+
+    private void cancelStopTimeout() {
+        if (mStopTimeout != null) {
+            mStopTimeout.cancel(false);
+            mStopTimeout = null;
+        }
+    }
+
+    /**
+     * Resize the gang once all the processes have stopped. The containers on unusable hosts are released, and then
+     * containers are requested or released so that `mScaleTarget` processes are expected, counting the spares.
+     */
+    private void regroup() {
+        mState = State.ALLOCATING;
+        cancelStopTimeout();
+        for (Container container : new ArrayList<>(mContainers.values())) {
+            if (mUnusableHosts.contains(container.getNodeId().getHost())) {
+                release(container);
+            }
+        }
+        int expected = numProcessesInContainers() + mNumSpareRequests;
+        mNumSpareRequests = 0;
+        LOG.info("All naiad processes are stopped, resize the gang from " + expected + " to " + mScaleTarget + " processes");
+        mAppMaster.resize(mScaleTarget);
+        for (int i = expected; i < mScaleTarget; i++) {
+            mAppMaster.requestReplacement(1);
+        }
+        // The containers allocated last are released first
+        List<Container> containers = new ArrayList<>(mContainers.values());
+        for (int i = containers.size() - 1; i >= 0 && expected > mScaleTarget; i--, expected--) {
+            release(containers.get(i));
+        }
+        if (isGangRegistered()) {
+            onGangRegistered();
+        }
     }
 
-    public void onContainersCompleted(List<ContainerStatus> list) {
+    private void handleNodesUpdated(List<NodeReport> list) {
+        List<String> hosts = new ArrayList<>();
+        for (NodeReport report : list) {
+            String host = report.getNodeId().getHost();
+            LOG.info("Node " + host + " is " + report.getNodeState() + ": " + report.getHealthReport());
+            if (report.getNodeState().isUnusable() && mHostProcesses.containsKey(host) && mUnusableHosts.add(host)) {
+                hosts.add(host);
+            }
+        }
+        if (hosts.isEmpty() || mState == State.FINISHED) {
+            return;
+        }
+        LOG.warning("Naiad processes run on unusable hosts " + hosts);
+        for (String host : hosts) {
+            mAppMaster.blacklist(host);
+        }
+        mHealthReport = "Unusable hosts: " + mUnusableHosts + "\n";
+        if (!mAppMaster.canReplaceContainers()) {
+            LOG.warning("Keep the containers on unusable hosts " + hosts + " as they are bound to `hosts`");
+        } else if (mState == State.ALLOCATING || mState == State.PROBING) {
+            replace(hosts);
+        } else if (!mAppMaster.isElastic()) {
+            LOG.warning("Keep the running naiad processes on unusable hosts " + hosts
+                + " as they can only be stopped at a checkpoint in elastic mode");
+        } else if (mNumCompletedContainers > 0) {
+            LOG.warning("Keep the running naiad processes on unusable hosts " + hosts + " as naiad is finishing");
+        } else {
+            // Ask for the replacements first, so that they arrive while the processes checkpoint
+            for (Container container : mContainers.values()) {
+                if (hosts.contains(container.getNodeId().getHost())) {
+                    mNumSpareRequests += 1;
+                    mAppMaster.requestReplacement(1);
+                }
+            }
+            if (mState == State.RUNNING) {
+                int numProcesses = numProcessesInContainers();
+                rescale(numProcesses, numProcesses, "to move off unusable hosts " + hosts);
+            }
+        }
+    }
+
+    private void handleContainersCompleted(List<ContainerStatus> list) {
         LOG.info("Get response from RM for container request, completedCnt = " + list.size());
-        mNumCompletedContainers += list.size();
         for (ContainerStatus status : list) {
+            if (mReleasedContainers.remove(status.getContainerId()) || !mContainers.containsKey(status.getContainerId())) {
+                continue;
+            }
+            Container container = mContainers.get(status.getContainerId());
+            if (mState == State.RESCALING && mUnusableHosts.contains(container.getNodeId().getHost())) {
+                // Lost before its processes stop at the checkpoint, a spare has been asked for already
+                LOG.warning("Container " + status.getContainerId() + " on unusable host " + container.getNodeId().getHost()
+                    + " completes while the gang is stopping, exit status: " + status.getExitStatus());
+                NaiadRendezvous.Peer[] peers = mPeers.get(status.getContainerId());
+                for (NaiadRendezvous.Peer peer : peers == null ? new NaiadRendezvous.Peer[0] : peers) {
+                    mStoppingPeers.remove(peer);
+                }
+                release(container);
+                mReleasedContainers.remove(status.getContainerId());
+                continue;
+            }
+            if (mState == State.RESCALING && status.getExitStatus() == 0) {
+                dropRescale(status.getContainerId());
+            }
+            mNumCompletedContainers += 1;
             LOG.info(String.format("Container %s: %s, exit status: %d", status.getContainerId().toString(),
                 status.getState().toString(), status.getExitStatus()));
             if (status.getExitStatus() == 0) {
                 mNumSuccessContainers += 1;
             }
         }
-        LOG.info("Total containers: " + mAppMaster.getNumProcesses() + ", completed containers: " + mNumCompletedContainers);
-        if (mAppMaster.getNumProcesses() == mNumCompletedContainers) {
-            // If all workers and master finish
-            synchronized (finalResultLock) {
-                finalResultLock.unlock();
-                finalResultLock.notifyAll();
+        LOG.info("Total containers: " + mAppMaster.getNumContainers() + ", completed containers: " + mNumCompletedContainers);
+        if (mState != State.FINISHED && mAppMaster.getNumContainers() == mNumCompletedContainers) {
+            // If all workers finish
+            finish();
+        } else if (mState != State.RUNNING && mState != State.FINISHED && mNumCompletedContainers > 0) {
+            // Only possible in rendezvous mode, where the naiad processes already started can never get all the peers
+            LOG.severe("A container completes before the naiad processes are started with all the peers");
+            finish();
+        } else if (mState == State.RESCALING && mStoppingPeers.isEmpty()) {
+            regroup();
+        }
+    }
+
+    private void handleContainersAllocated(List<Container> list) {
+        LOG.info("Get response from RM for container request, allocatedCnt = " + list.size());
+        for (Container container : list) {
+            String host = container.getNodeId().getHost();
+            int numProcesses = 0;
+            if (mState == State.ALLOCATING && mContainers.size() < mAppMaster.getNumContainers()) {
+                numProcesses = mAppMaster.takeProcessesFor(host);
+            } else if (mState == State.RESCALING && mNumSpareRequests > 0) {
+                mNumSpareRequests -= 1;
+                numProcesses = 1;
+            }
+            if (numProcesses == 0) {
+                LOG.info("Release container " + container.getId() + " on " + host + " as it is not needed");
+                mReleasedContainers.add(container.getId());
+                mAppMaster.getRMClient().releaseAssignedContainer(container.getId());
+                continue;
+            }
+            LOG.info("New container " + container.getId() + " is allocated on " + host);
+            mContainers.put(container.getId(), container);
+            mContainerProcesses.put(container.getId(), numProcesses);
+            int firstPort = mAppMaster.getPort() + (mHostProcesses.containsKey(host) ? mHostProcesses.get(host) : 0);
+            mHostProcesses.put(host, (mHostProcesses.containsKey(host) ? mHostProcesses.get(host) : 0) + numProcesses);
+            if (mAppMaster.isRendezvous()) {
+                startContainer(container, rendezvousCommand(container, numProcesses, firstPort));
+            }
+        }
+        mNumAllocatedContainers = mContainers.size();
+        if (mState == State.ALLOCATING && mContainers.size() == mAppMaster.getNumContainers()) {
+            if (!mAppMaster.isRendezvous()) {
+                launch();
+            } else if (isGangRegistered()) {
+                onGangRegistered();
             }
         }
     }
 
-    String nextCommand(String host) throws Exception {
-        if (cmdLock.isLocked()) {
-            synchronized (cmdLock) {
-                if (cmdLock.isLocked()) {
-                    cmdLock.wait();
-                }
+    private boolean isGangRegistered() {
+        return mContainers.size() == mAppMaster.getNumContainers() && mNumRegisteredProcesses == numProcessesInContainers();
+    }
+
+    private int numProcessesInContainers() {
+        int num = 0;
+        for (int numProcesses : mContainerProcesses.values()) {
+            num += numProcesses;
+        }
+        return num;
+    }
+
+    /**
+     * Run several naiad processes in one container. They are started in background and waited for by pid, since bash
+     * forgets a job that exits while it waits for an earlier one. The container fails if any of them fails, once the
+     * processes before it have exited. `$` is escaped as NM runs the command inside double quotes.
+     */
+    private static String inBackground(List<String> commands) {
+        if (commands.size() == 1) {
+            return commands.get(0);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i <= commands.size(); i++) {
+            builder.append(commands.get(i - 1)).append(" & p").append(i).append("=\\$!; ");
+        }
+        for (int i = 1; i <= commands.size(); i++) {
+            builder.append(i == 1 ? "wait \\$p" : " && wait \\$p").append(i);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Command to run `numProcesses` naiad processes in one container.
+     */
+    private String nextCommand(String host, int numProcesses) {
+        int id = mHostCmdCounter.get(host);
+        mHostCmdCounter.put(host, id + numProcesses);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < numProcesses; i++) {
+            commands.add(String.format(mCommandTemplate, id + i, mAppMaster.getNumThreadsFor(host)));
+        }
+        return inBackground(commands);
+    }
+
+    /**
+     * Start NaiadContainerLauncher, which records the resource usage of the naiad process, with the given id. In
+     * rendezvous mode the id is null, and the launcher names the record of every run itself.
+     */
+    private void appendLauncher(StringBuilder builder, String profileId, String numThreads) {
+        builder.append(JAVA_HOME.$()).append("/bin/java -Xmx32m ")
+            .append(NaiadContainerLauncher.class.getName());
+        if (mAppMaster.getProfileStore() != null) {
+            builder.append(" -profile_store ").append(mAppMaster.getProfileStore());
+            if (profileId != null) {
+                builder.append(" -profile_id ").append(profileId);
             }
+            builder.append(" -program '").append(mAppMaster.getProgram()).append('\'')
+                .append(" -num_thread ").append(numThreads);
+        }
+    }
+
+    /**
+     * Command to run `numProcesses` naiad processes in a container in rendezvous mode. The launchers register with the
+     * rendezvous service and append the process id and the peers to the naiad command.
+     */
+    private String rendezvousCommand(Container container, int numProcesses, int firstPort) {
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < numProcesses; i++) {
+            StringBuilder builder = new StringBuilder();
+            String numThreads = String.valueOf(mAppMaster.getNumThreadsFor(container.getNodeId().getHost()));
+            appendLauncher(builder, null, numThreads);
+            builder.append(" -rendezvous ").append(mAppMaster.getRendezvous().getAddress())
+                .append(" -container_id ").append(container.getId())
+                .append(" -index ").append(i)
+                .append(" -port ").append(firstPort + i)
+                .append(" -- ").append(mAppMaster.getProgram())
+                .append(" -t ").append(numThreads);
+            String log = mAppMaster.getLogDir() + '/' + mAppMaster.getAppId() + '-' + container.getId() + '-' + i;
+            builder.append(" 1>").append(log).append(".out");
+            builder.append(" 2>").append(log).append(".err");
+            commands.add(builder.toString());
         }
-        int id;
-        synchronized (mHostCmdCounter) {
-            id = mHostCmdCounter.get(host);
-            mHostCmdCounter.put(host, id + 1);
+        return inBackground(commands);
+    }
+
+    private void startContainer(Container container, String command) {
+        LOG.info("New container " + container.getId() + " starts on " + container.getNodeId().getHost());
+        ContainerLaunchContext ctx = Records.newRecord(ContainerLaunchContext.class);
+        ctx.setCommands(SingletonList.newSingletonList(command));
+        ctx.setLocalResources(mAppMaster.getContainerResources());
+        ctx.setEnvironment(mAppMaster.getContainerEnvironment());
+        mAppMaster.getNMClient().startContainerAsync(container, ctx);
+    }
+
+    private void onGangRegistered() {
+        if (mAppMaster.isProbe() && mNumProbeRounds < mAppMaster.getProbeRounds() && mHostProcesses.size() > 1) {
+            probe();
+        } else {
+            start();
         }
-        return String.format(mCommandTemplate, id, id, id);
     }
 
-    public void onContainersAllocated(List<Container> list) {
-        LOG.info("Get response from RM for container request, allocatedCnt = " + list.size());
-        for (final Container container : list) {
+    /**
+     * Ask the first naiad process on each host to measure its links to the other hosts. The links are measured in
+     * steps, see {@link #probeStep}.
+     */
+    private void probe() {
+        mState = State.PROBING;
+        mNumProbeRounds += 1;
+        mProbers.clear();
+        mLinks.clear();
+        for (Container container : mContainers.values()) {
             String host = container.getNodeId().getHost();
-            mHostCmdCounter.put(host, (mHostCmdCounter.containsKey(host) ? mHostCmdCounter.get(host) : 0) + 1);
-            Thread worker = new Thread() {
-                public void run() {
-                    String host = container.getNodeId().getHost();
-                    LOG.info("New container " + container.getId() + " starts on " + host);
-                    try {
-                        ContainerLaunchContext ctx = Records.newRecord(ContainerLaunchContext.class);
-                        ctx.setCommands(SingletonList.newSingletonList(nextCommand(host)));
-                        mAppMaster.getNMClient().startContainerAsync(container, ctx);
-                    } catch (Exception e) {
-                        LOG.log(Level.SEVERE, "Failed to start worker container on " + host, e);
+            if (!mProbers.containsKey(host)) {
+                mProbers.put(host, mPeers.get(container.getId())[0]);
+                mLinks.put(host, new LinkedHashMap<String, double[]>());
+            }
+        }
+        LOG.info("Probe the links between " + mProbers.size() + " hosts, round " + mNumProbeRounds);
+        mProbeStep = 0;
+        probeStep();
+    }
+
+    /**
+     * In step k of n - 1, the i-th host measures its link to the (i + k)-th host modulo n. Every host thus sends one
+     * probe and receives one at a time, and the transfers of different links do not share a host.
+     */
+    private void probeStep() {
+        mProbeStep += 1;
+        mNumProbed = 0;
+        List<String> hosts = new ArrayList<>(mProbers.keySet());
+        for (int i = 0; i < hosts.size(); i++) {
+            String target = hosts.get((i + mProbeStep) % hosts.size());
+            mProbers.get(hosts.get(i)).send(NaiadRendezvous.PROBE + ' ' + mAppMaster.getProbeBytes() + ' ' + target + ':'
+                + mProbers.get(target).port);
+        }
+    }
+
+    private static double median(List<Double> values) {
+        Collections.sort(values);
+        return values.isEmpty() ? 0 : values.get(values.size() / 2);
+    }
+
+    /**
+     * Hosts whose median link latency or bandwidth is `probe_threshold` times worse than that of the median host. A
+     * link that cannot be measured counts as infinitely slow. Needs at least 3 hosts to tell which end of a slow link
+     * is to blame.
+     */
+    private List<String> findSlowHosts() {
+        HashMap<String, List<Double>> latencies = new HashMap<>();
+        HashMap<String, List<Double>> bandwidths = new HashMap<>();
+        for (String host : mProbers.keySet()) {
+            latencies.put(host, new ArrayList<Double>());
+            bandwidths.put(host, new ArrayList<Double>());
+        }
+        for (Map.Entry<String, LinkedHashMap<String, double[]>> from : mLinks.entrySet()) {
+            for (Map.Entry<String, double[]> to : from.getValue().entrySet()) {
+                double latency = to.getValue()[0] < 0 ? Double.MAX_VALUE : to.getValue()[0];
+                double bandwidth = to.getValue()[0] < 0 ? 0 : to.getValue()[1];
+                for (String host : new String[]{from.getKey(), to.getKey()}) {
+                    if (latencies.containsKey(host)) {
+                        latencies.get(host).add(latency);
+                        bandwidths.get(host).add(bandwidth);
                     }
                 }
-            };
-            worker.start();
-            mContainerThreads.add(worker);
+            }
         }
-        if (mContainerThreads.size() == mAppMaster.getNumProcesses()) {
-            StringBuilder builder = new StringBuilder();
-            if (mAppMaster.isTest()) {
-                builder.append("echo 'This is $(hostname): ");
+
+        List<String> slowHosts = new ArrayList<>();
+        if (mProbers.size() < 3) {
+            return slowHosts;
+        }
+        HashMap<String, Double> hostLatencies = new HashMap<>();
+        HashMap<String, Double> hostBandwidths = new HashMap<>();
+        for (String host : mProbers.keySet()) {
+            hostLatencies.put(host, median(latencies.get(host)));
+            hostBandwidths.put(host, median(bandwidths.get(host)));
+        }
+        double typicalLatency = median(new ArrayList<>(hostLatencies.values()));
+        double typicalBandwidth = median(new ArrayList<>(hostBandwidths.values()));
+        double threshold = mAppMaster.getProbeThreshold();
+        for (String host : mProbers.keySet()) {
+            if (hostLatencies.get(host) > typicalLatency * threshold || hostBandwidths.get(host) * threshold < typicalBandwidth) {
+                LOG.warning(String.format("Host %s is slow: median latency %.0f us, bandwidth %.0f Mbps, typical %.0f us, %.0f Mbps",
+                    host, hostLatencies.get(host), hostBandwidths.get(host), typicalLatency, typicalBandwidth));
+                slowHosts.add(host);
             }
-            builder.append(mAppMaster.getProgram())
-                .append(" -t ").append(mAppMaster.getNumThreads())
-                .append(" -n ").append(mAppMaster.getNumProcesses())
-                .append(" -p %d").append(" -h"); // %d will be formated in nextCommand method.
-            int numProc = 0;
-            for (String key : mHostCmdCounter.keySet()) {
-                int val = mHostCmdCounter.get(key);
-                mHostCmdCounter.put(key, numProc);
-                numProc += val;
-                for (int i = 0; i < val; i++) {
-                    builder.append(' ').append(key).append(':').append(i + mAppMaster.getPort());
+        }
+        return slowHosts;
+    }
+
+    /**
+     * Append the link matrix of the current probe round to `app_id-links.txt` in the log directory.
+     */
+    private void writeLinks() {
+        String path = mAppMaster.getLogDir() + '/' + mAppMaster.getAppId() + "-links.txt";
+        try {
+            PrintWriter writer = new PrintWriter(new FileWriter(path, true));
+            try {
+                writer.println("# Probe round " + mNumProbeRounds + ", latency_us/bandwidth_mbps from the host of the row to the host of the column");
+                writer.print("-");
+                for (String host : mProbers.keySet()) {
+                    writer.print('\t' + host);
                 }
+                writer.println();
+                for (String from : mProbers.keySet()) {
+                    writer.print(from);
+                    for (String to : mProbers.keySet()) {
+                        double[] link = mLinks.get(from).get(to);
+                        writer.print(link == null ? "\t-" : String.format("\t%.0f/%.0f", link[0], link[1]));
+                    }
+                    writer.println();
+                }
+            } finally {
+                writer.close();
             }
-            if (mAppMaster.isTest()) {
-                builder.append('\'');
+            LOG.info("Link matrix of probe round " + mNumProbeRounds + " is written to " + path);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to write the link matrix to " + path, e);
+        }
+    }
+
+    private void evaluateLinks() {
+        writeLinks();
+        List<String> slowHosts = findSlowHosts();
+        if (slowHosts.isEmpty()) {
+            start();
+        } else if (!mAppMaster.canReplaceContainers()) {
+            LOG.warning("Start with slow hosts " + slowHosts + " as the containers are bound to `hosts`");
+            start();
+        } else if (mNumProbeRounds >= mAppMaster.getProbeRounds()) {
+            LOG.warning("Start with slow hosts " + slowHosts + " as no probe round is left");
+            start();
+        } else {
+            for (String host : slowHosts) {
+                mAppMaster.blacklist(host);
+                mReplacedHosts.add(host);
             }
-            builder.append(" 1>").append(mAppMaster.getLogDir()).append('/').append(mAppMaster.getAppId()).append("-container-%d.out");
-            builder.append(" 2>").append(mAppMaster.getLogDir()).append('/').append(mAppMaster.getAppId()).append("-container-%d.err");
-            mCommandTemplate = builder.toString();
+            replace(slowHosts);
+        }
+        mProbeReport = String.format("Probe rounds: %d, hosts probed: %d, slow hosts: %s, replaced hosts: %s\n",
+            mNumProbeRounds, mProbers.size(), slowHosts, mReplacedHosts);
+    }
 
-            LOG.info("Containers are ready. Command template is `" + mCommandTemplate + "`. Start to launch naiad processes.");
-            synchronized (cmdLock) {
-                cmdLock.unlock();
-                cmdLock.notifyAll();
+    /**
+     * Release the containers on the given hosts, which are blacklisted already, and ask for new ones elsewhere. In probe
+     * mode the gang is probed again once the new containers have registered.
+     */
+    private void replace(List<String> hosts) {
+        mState = State.ALLOCATING;
+        for (String host : hosts) {
+            LOG.info("Replace the containers on host " + host);
+            for (Container container : new ArrayList<>(mContainers.values())) {
+                if (container.getNodeId().getHost().equals(host)) {
+                    mAppMaster.requestReplacement(release(container));
+                }
+            }
+        }
+    }
+
+    /**
+     * Release a container of the gang and return the number of naiad processes in it. The launchers waiting for the
+     * peers give up once their connections are closed.
+     */
+    private int release(Container container) {
+        mContainers.remove(container.getId());
+        int numProcesses = mContainerProcesses.remove(container.getId());
+        String host = container.getNodeId().getHost();
+        int left = mHostProcesses.get(host) - numProcesses;
+        if (left == 0) {
+            mHostProcesses.remove(host);
+        } else {
+            mHostProcesses.put(host, left);
+        }
+        NaiadRendezvous.Peer[] peers = mPeers.remove(container.getId());
+        for (NaiadRendezvous.Peer peer : peers == null ? new NaiadRendezvous.Peer[0] : peers) {
+            if (peer != null) {
+                peer.close();
+                mNumRegisteredProcesses -= 1;
             }
         }
+        mReleasedContainers.add(container.getId());
+        mAppMaster.getRMClient().releaseAssignedContainer(container.getId());
+        mNumAllocatedContainers = mContainers.size();
+        return numProcesses;
     }
 
+    /**
+     * Send every registered naiad process its id and the peers. Ids are assigned host by host, as in {@link #launch}.
+     */
+    private void start() {
+        List<NaiadRendezvous.Peer> peers = new ArrayList<>();
+        StringBuilder hosts = new StringBuilder();
+        for (String host : mHostProcesses.keySet()) {
+            for (Container container : mContainers.values()) {
+                if (!container.getNodeId().getHost().equals(host)) {
+                    continue;
+                }
+                for (NaiadRendezvous.Peer peer : mPeers.get(container.getId())) {
+                    peers.add(peer);
+                    hosts.append(' ').append(host).append(':').append(peer.port);
+                }
+            }
+        }
+        LOG.info("All naiad processes are registered. Start them with peers" + hosts);
+        mState = State.RUNNING;
+        mStartTime = mAppMaster.currentTimeMillis();
+        mLoads.clear();
+        mFreshLoads.clear();
+        mHighRounds = 0;
+        mLowRounds = 0;
+        if (mScaleStartTime != 0) {
+            mNumRescales += 1;
+            mScaleReport += String.format("Rescale %d: %d -> %d processes %s, downtime %.1f s\n",
+                mNumRescales, mScaleFrom, peers.size(), mScaleReason, (mStartTime - mScaleStartTime) / 1000.0);
+            mScaleStartTime = 0;
+        }
+        for (int i = 0; i < peers.size(); i++) {
+            peers.get(i).send(NaiadRendezvous.START + ' ' + i + ' ' + peers.size() + hosts);
+        }
+    }
+
+    private void launch() {
+        StringBuilder builder = new StringBuilder();
+        if (mAppMaster.isTest()) {
+            builder.append("echo 'This is $(hostname): ");
+        } else if (mAppMaster.getProfileStore() != null) {
+            appendLauncher(builder, mAppMaster.getAppId() + "-%1$d", "%2$d");
+            builder.append(" -- ");
+        }
+        // %1$d (process id) and %2$d (threads of the host) will be formated in nextCommand method.
+        builder.append(mAppMaster.getProgram())
+            .append(" -t %2$d")
+            .append(" -n ").append(mAppMaster.getNumProcesses())
+            .append(" -p %1$d").append(" -h");
+        int numProc = 0;
+        for (Map.Entry<String, Integer> entry : mHostProcesses.entrySet()) {
+            mHostCmdCounter.put(entry.getKey(), numProc);
+            numProc += entry.getValue();
+            for (int i = 0; i < entry.getValue(); i++) {
+                builder.append(' ').append(entry.getKey()).append(':').append(i + mAppMaster.getPort());
+            }
+        }
+        if (mAppMaster.isTest()) {
+            builder.append('\'');
+        }
+        builder.append(" 1>").append(mAppMaster.getLogDir()).append('/').append(mAppMaster.getAppId()).append("-container-%1$d.out");
+        builder.append(" 2>").append(mAppMaster.getLogDir()).append('/').append(mAppMaster.getAppId()).append("-container-%1$d.err");
+        mCommandTemplate = builder.toString();
+
+        LOG.info("Containers are ready. Command template is `" + mCommandTemplate + "`. Start to launch naiad processes.");
+        mState = State.RUNNING;
+        for (Container container : mContainers.values()) {
+            String host = container.getNodeId().getHost();
+            startContainer(container, nextCommand(host, mContainerProcesses.get(container.getId())));
+        }
+    }
+
+    private void finish() {
+        mState = State.FINISHED;
+        cancelStopTimeout();
+        // Naiad processes still waiting for the peers give up
+        for (NaiadRendezvous.Peer[] peers : mPeers.values()) {
+            for (NaiadRendezvous.Peer peer : peers) {
+                if (peer != null) {
+                    peer.close();
+                }
+            }
+        }
+        mFinished.countDown();
+    }
+
+    /**
+     * The RM no longer accepts this attempt, e.g. it has been killed or the RM has lost track of it. The gang is given
+     * up, and {@link NaiadApplicationMaster#run} stops the containers without unregistering.
+     */
     public void onShutdownRequest() {
+        post("ShutdownRequest", new Runnable() {
+            public void run() {
+                LOG.severe("Resource manager asks application master to shut down");
+                mShutdownRequested = true;
+                if (mState != State.FINISHED) {
+                    finish();
+                }
+            }
+        });
     }
 
-    public void onNodesUpdated(List<NodeReport> list) {
+    public void onNodesUpdated(final List<NodeReport> list) {
+        post("NodesUpdated", new Runnable() {
+            public void run() {
+                handleNodesUpdated(list);
+            }
+        });
     }
 
     public float getProgress() {
-        return ((float) mNumCompletedContainers) / mAppMaster.getNumProcesses();
+        return ((float) mNumCompletedContainers) / mAppMaster.getNumContainers();
     }
 
-    public void onError(Throwable throwable) {
-        mAppMaster.getRMClient().stop();
+    public void onError(final Throwable throwable) {
+        post("Error", new Runnable() {
+            public void run() {
+                LOG.log(Level.SEVERE, "Error thrown by the RM client", throwable);
+                mAppMaster.getRMClient().stop();
+                finish();
+            }
+        });
     }
 }
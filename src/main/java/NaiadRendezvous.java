@@ -0,0 +1,170 @@
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The rendezvous service of the application master. Each naiad process connects as soon as its container starts,
+ * binds the port it will listen on and registers with `REGISTER container_id index port`. Once the gang is complete,
+ * the application master answers every process with `START process_id num_processes host1:port1 host2:port2 ...`.
+ * The connection stays open while the process runs. Events are handed to {@link NaiadRMCallbackHandler}.
+ *
+ * In probe mode the application master first sends `PROBE num_bytes host1:port1 ...` to one process per host, which
+ * measures its links to the given hosts with {@link NaiadLinkProbe} and answers `PROBED host1:port1:latency_us:bandwidth_mbps ...`.
+ * The links are probed one per host and step, so that no host takes part in two transfers at once.
+ *
+ * While naiad runs, every process reports its cpu usage with `LOAD milli_cores`. In elastic mode the application master
+ * rescales the gang by sending `STOP` to all the processes, which checkpoint, exit and answer `STOPPED exit_status port`
+ * with the port they hold again. The processes that stay are started again with a new `START` once the new gang is complete.
+ * If naiad finishes on its own before `STOP` reaches all the processes, those that have stopped are sent `FINISH` and
+ * exit with the status they stopped with.
+ */
+public class NaiadRendezvous {
+    private static final Logger LOG = Logger.getLogger(NaiadRendezvous.class.getName());
+
+    static final String REGISTER = "REGISTER";
+    static final String START = "START";
+    static final String PROBE = "PROBE";
+    static final String PROBED = "PROBED";
+    static final String LOAD = "LOAD";
+    static final String STOP = "STOP";
+    static final String STOPPED = "STOPPED";
+    static final String FINISH = "FINISH";
+
+    /**
+     * A registered naiad process.
+     */
+    static class Peer {
+        final ContainerId containerId;
+        final int index;
+        // Updated when the process is stopped for rescaling and holds its port again
+        int port;
+        private final Socket mSocket;
+        private final PrintWriter mWriter;
+        private volatile boolean mClosed = false;
+
+        Peer(ContainerId containerId, int index, int port, Socket socket) throws IOException {
+            this.containerId = containerId;
+            this.index = index;
+            this.port = port;
+            mSocket = socket;
+            mWriter = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        synchronized void send(String line) {
+            mWriter.println(line);
+        }
+
+        /**
+         * Close the connection from the side of application master, which is not reported as a disconnection.
+         */
+        void close() {
+            mClosed = true;
+            try {
+                mSocket.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        boolean isClosed() {
+            return mClosed;
+        }
+
+        public String toString() {
+            return containerId + "-" + index;
+        }
+    }
+
+    private final NaiadRMCallbackHandler mHandler;
+    private final ServerSocket mServerSocket;
+    private final String mHost;
+    private volatile boolean mStopped = false;
+
+    NaiadRendezvous(NaiadRMCallbackHandler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0);
+        mHost = InetAddress.getLocalHost().getCanonicalHostName();
+
+        Thread acceptor = new Thread("NaiadRendezvous acceptor") {
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Rendezvous service listens on " + getAddress());
+    }
+
+    String getHost() {
+        return mHost;
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    String getAddress() {
+        return mHost + ':' + getPort();
+    }
+
+    void stop() {
+        mStopped = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    private void accept() {
+        while (!mStopped) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                Thread reader = new Thread("NaiadRendezvous " + socket.getRemoteSocketAddress()) {
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!mStopped) {
+                    LOG.log(Level.WARNING, "Error accepting rendezvous connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Peer peer = null;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.forName("UTF-8")));
+            String line = reader.readLine();
+            String[] words = line == null ? new String[0] : line.trim().split(" ");
+            if (words.length != 4 || !words[0].equals(REGISTER)) {
+                LOG.warning("Illegal registration from " + socket.getRemoteSocketAddress() + ": " + line);
+                socket.close();
+                return;
+            }
+            peer = new Peer(ContainerId.fromString(words[1]), Integer.parseInt(words[2]), Integer.parseInt(words[3]), socket);
+            mHandler.onProcessRegistered(peer);
+            while ((line = reader.readLine()) != null) {
+                mHandler.onProcessMessage(peer, line);
+            }
+        } catch (Exception e) {
+            if (!mStopped && (peer == null || !peer.isClosed())) {
+                LOG.log(Level.WARNING, "Error reading from rendezvous connection " + (peer == null ? socket.getRemoteSocketAddress() : peer), e);
+            }
+        }
+        if (peer != null && !peer.isClosed()) {
+            mHandler.onProcessDisconnected(peer);
+        }
+    }
+}
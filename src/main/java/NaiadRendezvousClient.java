@@ -0,0 +1,56 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * The side of the rendezvous protocol run by each naiad process, see {@link NaiadRendezvous}.
+ */
+public class NaiadRendezvousClient {
+    private final Socket mSocket;
+    private final BufferedReader mReader;
+    private final PrintWriter mWriter;
+
+    NaiadRendezvousClient(String address) throws IOException {
+        int split = address.lastIndexOf(':');
+        if (split < 0) {
+            throw new IllegalArgumentException("Illegal rendezvous address, which should be `host:port`: " + address);
+        }
+        mSocket = new Socket(address.substring(0, split), Integer.parseInt(address.substring(split + 1)));
+        mReader = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), Charset.forName("UTF-8")));
+        mWriter = new PrintWriter(mSocket.getOutputStream(), true);
+    }
+
+    /**
+     * Register the `index`-th naiad process of a container, which will listen on `port`.
+     */
+    void register(String containerId, int index, int port) {
+        send(NaiadRendezvous.REGISTER + ' ' + containerId + ' ' + index + ' ' + port);
+    }
+
+    /**
+     * Block until the application master sends a command, {@link NaiadRendezvous#PROBE} or
+     * {@link NaiadRendezvous#START}. Returns its words, or null if the application master goes away.
+     */
+    String[] awaitCommand() throws IOException {
+        String line = mReader.readLine();
+        return line == null ? null : line.trim().split(" ");
+    }
+
+    synchronized void send(String line) {
+        mWriter.println(line);
+    }
+
+    String readLine() throws IOException {
+        return mReader.readLine();
+    }
+
+    void close() {
+        try {
+            mSocket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
@@ -0,0 +1,389 @@
+import org.apache.commons.cli.*;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the request, allocation and launch logic of {@link NaiadApplicationMaster} against a synthetic resource manager
+ * and reports the predicted startup time, placement and resource waste, without touching a real cluster.
+ */
+public class NaiadSimulator {
+    private static final Logger LOG = Logger.getLogger(NaiadSimulator.class.getName());
+
+    private List<SimulatedResourceManager.SimNode> mNodes = new ArrayList<>();
+    private int mHeartbeatInterval = 0;
+    private long mAllocationDelay = 0;
+    private long mLaunchDelay = 0;
+    private double mLaunchJitter = 0;
+    private long mProcessStartDelay = 0;
+    private long mRunTime = 0;
+    private double mFailureRate = 0;
+    private double mProcessLoad = 0;
+    private long mNodeLossDelay = 0;
+    private long mShutdownTime = 0;
+    private String mPolicy = "spread";
+    private long mMaxTime = 0;
+    private int mCallbackThreads = 0;
+    private long mSeed = 0;
+    private String[] mAppMasterArgs = new String[0];
+
+    private volatile SimulatedResourceManager mRM = null;
+    private volatile NaiadRMCallbackHandler mHandler = null;
+
+    private Options createSimulatorOptions() {
+        Options opts = new Options();
+        opts.addOption("help", false, "Print Usage");
+        opts.addOption("nodes", true,
+            "Nodes of the synthetic cluster. Format(split by comma): host1:memory1:vcores1[:label1],host2:memory2:vcores2[:label2],...");
+        opts.addOption("slow_nodes", true, "Nodes whose links are 10 times slower in link probes, split by comma");
+        opts.addOption("failing_nodes", true,
+            "Nodes reported unhealthy by the synthetic RM and the time in ms when they are. Format(split by comma): host1:time1,host2:time2,...");
+        opts.addOption("node_loss_delay", true,
+            "Time in ms after which an unhealthy node is lost with all its containers. Default to 30000");
+        opts.addOption("shutdown_time", true, "Time in ms when the synthetic RM asks application master to shut down. Default to never");
+        opts.addOption("num_nodes", true, "Number of identical nodes `node1`, `node2`, ... if `nodes` is not given. Default to 8");
+        opts.addOption("node_memory", true, "Memory in MB of each node if `nodes` is not given. Default to 8192");
+        opts.addOption("node_vcores", true, "Number of virtual cores of each node if `nodes` is not given. Default to 8");
+        opts.addOption("heartbeat_interval", true, "Interval in ms between two heartbeats of the synthetic RM. Default to 1000");
+        opts.addOption("allocation_delay", true,
+            "Mean delay in ms before a container request can be satisfied. Delays are uniform in [0, 2 * mean]. Default to 2000");
+        opts.addOption("launch_delay", true,
+            "Mean time in ms for localization and the launchers of a container to start. Default to 2000");
+        opts.addOption("launch_jitter", true,
+            "Launch delays are uniform in [launch_delay * (1 - jitter), launch_delay * (1 + jitter)]. Default to 0");
+        opts.addOption("process_start_delay", true,
+            "Time in ms for naiad processes to start after the command, or the peers in rendezvous mode, is given. Default to 1000");
+        opts.addOption("run_time", true, "Time in ms that a naiad process runs after it starts. Default to 60000");
+        opts.addOption("failure_rate", true, "Probability that a naiad process fails before it finishes. Default to 0");
+        opts.addOption("process_load", true,
+            "Cpu cores used by each naiad process, reported by the emulated launchers in rendezvous mode. Default to 0, which is not reported");
+        opts.addOption("rm_policy", true,
+            "How the synthetic RM places requests without a strict host: spread, pack or random. Default to spread");
+        opts.addOption("max_time", true, "Simulated time in ms after which the simulation is regarded as stalled. Default to 3600000");
+        opts.addOption("callback_threads", true,
+            "Number of threads delivering RM callbacks at the same time, one container per callback if more than 1. Default to 1");
+        opts.addOption("seed", true, "Seed of the random number generator. Default to 0");
+        return opts;
+    }
+
+    private void printUsage() {
+        new HelpFormatter().printHelp("NaiadSimulator [options] -- [NaiadApplicationMaster options]", createSimulatorOptions());
+    }
+
+    boolean init(String[] args) throws ParseException {
+        CommandLine cliParser = new GnuParser().parse(createSimulatorOptions(), args, true);
+
+        if (args.length == 0 || cliParser.hasOption("help")) {
+            printUsage();
+            return false;
+        }
+
+        if (cliParser.hasOption("nodes")) {
+            String value = cliParser.getOptionValue("nodes");
+            try {
+                for (String node : value.split(",")) {
+                    String[] vals = node.trim().split(":");
+                    mNodes.add(new SimulatedResourceManager.SimNode(vals[0], Integer.parseInt(vals[1]),
+                        Integer.parseInt(vals[2]), vals.length > 3 ? vals[3] : null));
+                }
+            } catch (Exception e) {
+                throw new IllegalArgumentException(
+                    "Illegal nodes specified. Format should be `host1:memory1:vcores1[:label1],...`. Specified nodes: " + value, e);
+            }
+        } else {
+            int numNodes = Integer.parseInt(cliParser.getOptionValue("num_nodes", "8"));
+            int memory = Integer.parseInt(cliParser.getOptionValue("node_memory", "8192"));
+            int vcores = Integer.parseInt(cliParser.getOptionValue("node_vcores", "8"));
+            if (numNodes <= 0 || memory <= 0 || vcores <= 0) {
+                throw new IllegalArgumentException("Illegal synthetic cluster specified. Number of nodes: " + numNodes
+                    + ", memory: " + memory + ", vcores: " + vcores);
+            }
+            for (int i = 1; i <= numNodes; i++) {
+                mNodes.add(new SimulatedResourceManager.SimNode("node" + i, memory, vcores, null));
+            }
+        }
+
+        if (cliParser.hasOption("slow_nodes")) {
+            for (String host : cliParser.getOptionValue("slow_nodes").split(",")) {
+                boolean found = false;
+                for (SimulatedResourceManager.SimNode node : mNodes) {
+                    if (node.host.equals(host.trim())) {
+                        node.slow = true;
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    throw new IllegalArgumentException("Illegal slow node specified, which is not in the cluster. Specified node: " + host);
+                }
+            }
+        }
+
+        if (cliParser.hasOption("failing_nodes")) {
+            for (String failing : cliParser.getOptionValue("failing_nodes").split(",")) {
+                String[] vals = failing.trim().split(":");
+                SimulatedResourceManager.SimNode found = null;
+                for (SimulatedResourceManager.SimNode node : mNodes) {
+                    if (node.host.equals(vals[0])) {
+                        found = node;
+                    }
+                }
+                if (vals.length != 2 || found == null || Long.parseLong(vals[1]) < 0) {
+                    throw new IllegalArgumentException("Illegal failing node specified. Specified node: " + failing);
+                }
+                found.unhealthyTime = Long.parseLong(vals[1]);
+            }
+        }
+        mNodeLossDelay = Long.parseLong(cliParser.getOptionValue("node_loss_delay", "30000"));
+        if (mNodeLossDelay < 0) {
+            throw new IllegalArgumentException("Illegal node loss delay specified. Specified delay: " + mNodeLossDelay);
+        }
+        mShutdownTime = Long.parseLong(cliParser.getOptionValue("shutdown_time", "-1"));
+
+        mHeartbeatInterval = Integer.parseInt(cliParser.getOptionValue("heartbeat_interval", "1000"));
+        if (mHeartbeatInterval <= 0) {
+            throw new IllegalArgumentException("Illegal heartbeat interval specified. Specified interval: " + mHeartbeatInterval);
+        }
+
+        mAllocationDelay = Long.parseLong(cliParser.getOptionValue("allocation_delay", "2000"));
+        mLaunchDelay = Long.parseLong(cliParser.getOptionValue("launch_delay", "2000"));
+        mProcessStartDelay = Long.parseLong(cliParser.getOptionValue("process_start_delay", "1000"));
+        mRunTime = Long.parseLong(cliParser.getOptionValue("run_time", "60000"));
+        if (mAllocationDelay < 0 || mLaunchDelay < 0 || mProcessStartDelay < 0 || mRunTime < 0) {
+            throw new IllegalArgumentException("Illegal delays specified. Allocation delay: " + mAllocationDelay
+                + ", launch delay: " + mLaunchDelay + ", process start delay: " + mProcessStartDelay
+                + ", run time: " + mRunTime);
+        }
+
+        mLaunchJitter = Double.parseDouble(cliParser.getOptionValue("launch_jitter", "0"));
+        if (mLaunchJitter < 0 || mLaunchJitter > 1) {
+            throw new IllegalArgumentException("Illegal launch jitter specified. Specified jitter: " + mLaunchJitter);
+        }
+
+        mFailureRate = Double.parseDouble(cliParser.getOptionValue("failure_rate", "0"));
+        if (mFailureRate < 0 || mFailureRate > 1) {
+            throw new IllegalArgumentException("Illegal failure rate specified. Specified rate: " + mFailureRate);
+        }
+
+        mProcessLoad = Double.parseDouble(cliParser.getOptionValue("process_load", "0"));
+        if (mProcessLoad < 0) {
+            throw new IllegalArgumentException("Illegal process load specified. Specified load: " + mProcessLoad);
+        }
+
+        mPolicy = cliParser.getOptionValue("rm_policy", mPolicy);
+        if (!mPolicy.equals("spread") && !mPolicy.equals("pack") && !mPolicy.equals("random")) {
+            throw new IllegalArgumentException("Illegal RM policy specified. Specified policy: " + mPolicy);
+        }
+
+        mMaxTime = Long.parseLong(cliParser.getOptionValue("max_time", "3600000"));
+        mCallbackThreads = Integer.parseInt(cliParser.getOptionValue("callback_threads", "1"));
+        if (mCallbackThreads <= 0) {
+            throw new IllegalArgumentException("Illegal number of callback threads specified. Specified number: " + mCallbackThreads);
+        }
+        mSeed = Long.parseLong(cliParser.getOptionValue("seed", "0"));
+
+        // Everything after `--` goes to the application master. Like the client, the capability of the nodes is passed
+        // on in exclusive mode to size the container of each host
+        List<String> appMasterArgs = new ArrayList<>(Arrays.asList(cliParser.getArgs()));
+        if (appMasterArgs.contains("-exclusive") && !appMasterArgs.contains("-node_capabilities")) {
+            StringBuilder spec = new StringBuilder();
+            for (SimulatedResourceManager.SimNode node : mNodes) {
+                spec.append(spec.length() == 0 ? "" : ",").append(node.host)
+                    .append(':').append(node.memory).append(':').append(node.vcores);
+            }
+            appMasterArgs.add("-node_capabilities");
+            appMasterArgs.add(spec.toString());
+        }
+        mAppMasterArgs = appMasterArgs.toArray(new String[appMasterArgs.size()]);
+        return true;
+    }
+
+    boolean run() throws Exception {
+        final NaiadApplicationMaster appMaster = new NaiadApplicationMaster() {
+            AMRMClientAsync<AMRMClient.ContainerRequest> createRMClient(AMRMClientAsync.CallbackHandler handler) {
+                mHandler = (NaiadRMCallbackHandler) handler;
+                mRM = new SimulatedResourceManager(handler, mNodes, mHeartbeatInterval, mAllocationDelay,
+                    mLaunchDelay, mLaunchJitter, mProcessStartDelay, mRunTime, mFailureRate, mPolicy, mMaxTime,
+                    mCallbackThreads, mNodeLossDelay, mShutdownTime, mSeed);
+                return mRM;
+            }
+
+            NMClientAsync createNMClient(NMClientAsync.CallbackHandler handler) {
+                return new SimulatedNodeManager(mRM, handler, mProcessLoad);
+            }
+
+            void setupContainerLaunchContext() {
+                // Nothing is localized to synthetic containers
+            }
+
+            void blacklist(String host) {
+                mRM.updateBlacklist(Collections.singletonList(host), null);
+            }
+
+            long currentTimeMillis() {
+                return mRM.getClock();
+            }
+        };
+        if (!appMaster.init(mAppMasterArgs)) {
+            return false;
+        }
+
+        Thread appMasterThread = new Thread("NaiadApplicationMaster") {
+            public void run() {
+                try {
+                    appMaster.run();
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Error running NaiadApplicationMaster in simulation", e);
+                }
+            }
+        };
+        appMasterThread.setDaemon(true);
+        appMasterThread.start();
+
+        while (mRM == null) {
+            if (!appMasterThread.isAlive()) {
+                throw new IllegalStateException("NaiadApplicationMaster stops before the simulation starts");
+            }
+            Thread.sleep(10);
+        }
+        mRM.awaitFinish();
+
+        System.out.print(report());
+        return !mRM.isStalled() && mRM.getFinalStatus() == FinalApplicationStatus.SUCCEEDED
+            && mRM.getNumReportedCompletions() == mHandler.getNumCompletedContainers();
+    }
+
+    SimulatedResourceManager getResourceManager() {
+        return mRM;
+    }
+
+    NaiadRMCallbackHandler getHandler() {
+        return mHandler;
+    }
+
+    private static String seconds(long ms) {
+        return String.format("%.3f s", ms / 1000.0);
+    }
+
+    private String report() {
+        List<SimulatedResourceManager.SimContainer> containers = mRM.getContainers();
+        List<SimulatedResourceManager.SimNode> nodes = mRM.getNodes();
+
+        long gangAllocated = -1;
+        long gangLaunched = -1;
+        boolean allLaunched = !containers.isEmpty();
+        long idleMemory = 0;
+        long idleVcores = 0;
+        long lostMemory = 0;
+        int numFailed = 0;
+        int numMisplaced = 0;
+        LinkedHashMap<String, Resource> placement = new LinkedHashMap<>();
+        for (SimulatedResourceManager.SimContainer container : containers) {
+            Resource resource = container.container.getResource();
+            String host = container.container.getNodeId().getHost();
+            gangAllocated = Math.max(gangAllocated, container.allocateTime);
+            // Reserved but idle while waiting for the rest of the gang, localization and startup
+            long idleUntil = container.launchTime;
+            if (container.launchTime < 0) {
+                // Released containers, e.g. those replaced after a link probe, are not part of the gang
+                allLaunched &= container.released;
+                idleUntil = container.finishTime < 0 ? mRM.getClock() : container.finishTime;
+            } else {
+                gangLaunched = Math.max(gangLaunched, container.launchTime);
+            }
+            idleMemory += (idleUntil - container.allocateTime) * resource.getMemory();
+            idleVcores += (idleUntil - container.allocateTime) * resource.getVirtualCores();
+            if (container.exitStatus != ContainerExitStatus.SUCCESS && container.finishTime >= 0 && !container.released) {
+                numFailed += 1;
+                lostMemory += (container.finishTime - container.allocateTime) * resource.getMemory();
+            }
+            if (container.requestedHost != null && !container.requestedHost.equals(host)) {
+                numMisplaced += 1;
+            }
+            Resource used = placement.get(host);
+            if (used == null) {
+                used = Resource.newInstance(0, 0);
+                placement.put(host, used);
+            }
+            used.setMemory(used.getMemory() + resource.getMemory());
+            used.setVirtualCores(used.getVirtualCores() + resource.getVirtualCores());
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("==== NaiadSimulator report (rm_policy ").append(mPolicy).append(", seed ").append(mSeed)
+            .append(") ====\n");
+        if (mRM.isStalled()) {
+            builder.append("Status: STALLED after ").append(seconds(mRM.getClock())).append(", ")
+                .append(mRM.getNumPending()).append(" container requests pending\n");
+        } else {
+            builder.append("Status: ").append(mRM.getFinalStatus()).append(", ").append(mRM.getFinalMessage().trim())
+                .append('\n');
+        }
+        boolean allAllocated = gangAllocated >= 0 && mRM.getNumPending() == 0;
+        builder.append("Gang allocated at: ").append(allAllocated ? seconds(gangAllocated) : "never").append('\n');
+        builder.append("Predicted startup time: ").append(allLaunched ? seconds(gangLaunched) : "never").append('\n');
+        if (!mRM.isStalled()) {
+            builder.append("Finished at: ").append(seconds(mRM.getFinishTime())).append('\n');
+        }
+        int numReported = mRM.getNumReportedCompletions();
+        int numCounted = mHandler.getNumCompletedContainers();
+        builder.append("Completions: ").append(numReported).append(" reported by RM, ").append(numCounted)
+            .append(" counted by application master").append(numReported == numCounted ? "\n" : " (LOST)\n");
+        if (!mRM.getBlacklist().isEmpty()) {
+            builder.append("Blacklisted by application master: ").append(mRM.getBlacklist()).append('\n');
+        }
+
+        builder.append("Placement (").append(containers.size()).append(" containers, ").append(numMisplaced)
+            .append(" not on the requested host):\n");
+        long unusedMemory = 0;
+        long unusedVcores = 0;
+        for (SimulatedResourceManager.SimNode node : nodes) {
+            Resource used = placement.get(node.host);
+            if (used == null) {
+                continue;
+            }
+            builder.append(String.format("  %s: %d containers, %d/%d MB, %d/%d vcores\n", node.host,
+                node.numContainers, used.getMemory(), node.memory, used.getVirtualCores(), node.vcores));
+            unusedMemory += node.memory - used.getMemory();
+            unusedVcores += node.vcores - used.getVirtualCores();
+        }
+
+        builder.append("Resource waste:\n");
+        builder.append(String.format("  Idle before launch: %.1f MB*s, %.1f vcore*s\n", idleMemory / 1000.0,
+            idleVcores / 1000.0));
+        builder.append(String.format("  Failed processes: %d, %.1f MB*s lost\n", numFailed, lostMemory / 1000.0));
+        builder.append(String.format("  Left over on used nodes: %d MB, %d vcores\n", unusedMemory, unusedVcores));
+        return builder.toString();
+    }
+
+    static public void main(String[] args) {
+        boolean result = false;
+        try {
+            NaiadSimulator simulator = new NaiadSimulator();
+            try {
+                if (!simulator.init(args)) {
+                    System.exit(0);
+                }
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Exception on parsing arguments", e);
+                simulator.printUsage();
+                System.exit(-1);
+            }
+            result = simulator.run();
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error running NaiadSimulator", e);
+            System.exit(-1);
+        }
+        System.exit(result ? 0 : -1);
+    }
+}
@@ -0,0 +1,49 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+/**
+ * Serves the status report of the application master as plain text. Its address is registered as the tracking url,
+ * so the report is linked from the web UI of the resource manager while the application runs.
+ */
+public class NaiadStatusServer {
+    private static final Logger LOG = Logger.getLogger(NaiadStatusServer.class.getName());
+
+    private final HttpServer mServer;
+    private final String mHost;
+
+    NaiadStatusServer(final NaiadRMCallbackHandler handler) throws IOException {
+        mHost = InetAddress.getLocalHost().getCanonicalHostName();
+        mServer = HttpServer.create(new InetSocketAddress(0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = handler.getStatusReport().getBytes(Charset.forName("UTF-8"));
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        mServer.start();
+        LOG.info("Status server listens on " + getAddress());
+    }
+
+    String getAddress() {
+        return mHost + ':' + mServer.getAddress().getPort();
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+}
@@ -16,7 +16,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,11 +32,15 @@ import static org.apache.hadoop.yarn.conf.YarnConfiguration.YARN_APPLICATION_CLA
 public class NaiadYarnClient {
     private static final Logger LOG = Logger.getLogger(NaiadYarnClient.class.getName());
 
+    // Memory taken by the JVM of NaiadContainerLauncher in each container when resource usage is recorded
+    private static final int LAUNCHER_MEMORY = 64;
+
     private YarnConfiguration mYarnConf = new YarnConfiguration();
     private FileSystem mFileSystem = FileSystem.get(mYarnConf);
     private YarnClient mYarnClient = YarnClient.createYarnClient();
     private String mAppName = "NaiadOnYarnApp";
     private String mAppMasterJar = "";  // Jar that contains Application class
+    private String mAppMasterJarHDFSPath = "";
 
     private boolean mIsTest = false;
 
@@ -42,14 +48,34 @@ public class NaiadYarnClient {
     private int mNumVirtualCores = 0;
     private int mContainerMemory = 0;  // Memory that can be used by a container
     private int mAppPriority = 0;
+    private String mNodeLabel = null;
+    private boolean mIsExclusive = false;
+    private boolean mIsRendezvous = false;
+    private boolean mIsProbe = false;
+    private String mProbeBytes = null;
+    private String mProbeThreshold = null;
+    private String mProbeRounds = null;
+    private boolean mIsElastic = false;
+    private String mMinProcesses = null;
+    private String mMaxProcesses = null;
+    private String mScaleInterval = null;
+    private String mStopTimeout = null;
 
     private int mPort = 2100;
     private String mProgram = "";
     private int mNumProcesses = 0;
     private int mNumThreads = 0;
     private ArrayList<Pair<String, Integer>> mHosts = new ArrayList<>();
+    private String mHostsSpec = null;  // Passed to application master as is, with the container shapes of the hosts
+    private HashMap<String, Pair<Integer, Integer>> mHostShapes = new HashMap<>();  // Memory and vcores given in `hosts`
+    private String mNodeCapabilitiesSpec = null;  // Capability of the node of each host, taken by its exclusive container
 
     private String mLocalResourceHDFSPaths = "";  // Paths to resources that need to download to working environment
+    private String mProfileStore = null;
+    private boolean mIsAot = false;
+    private String mMono = "mono";
+    private ArrayList<File> mAotAssemblies = new ArrayList<>();
+    private String mAotCache = null;
     private String mLogDir = "<LOG_DIR>";
 
     private ApplicationId mAppId = null;
@@ -112,6 +138,25 @@ public class NaiadYarnClient {
                 "Illegal priority for husky application. Specified priority: " + mAppPriority);
         }
 
+        mNodeLabel = cliParser.getOptionValue("node_label");
+        mIsExclusive = cliParser.hasOption("exclusive");
+        mIsRendezvous = cliParser.hasOption("rendezvous");
+        mIsProbe = cliParser.hasOption("probe");
+        if (mIsProbe && !mIsRendezvous) {
+            throw new IllegalArgumentException("`probe` can only be used together with `rendezvous`.");
+        }
+        mProbeBytes = cliParser.getOptionValue("probe_bytes");
+        mProbeThreshold = cliParser.getOptionValue("probe_threshold");
+        mProbeRounds = cliParser.getOptionValue("probe_rounds");
+        mIsElastic = cliParser.hasOption("elastic");
+        if (mIsElastic && !mIsRendezvous) {
+            throw new IllegalArgumentException("`elastic` can only be used together with `rendezvous`.");
+        }
+        mMinProcesses = cliParser.getOptionValue("min_process");
+        mMaxProcesses = cliParser.getOptionValue("max_process");
+        mScaleInterval = cliParser.getOptionValue("scale_interval");
+        mStopTimeout = cliParser.getOptionValue("stop_timeout");
+
         mLocalResourceHDFSPaths = cliParser.getOptionValue("local_resource_dir", "hdfs:///naiad-yarn/");
 
         mLogDir = cliParser.getOptionValue("log_dir", mLogDir);
@@ -126,12 +171,24 @@ public class NaiadYarnClient {
             try {
                 for (String pair : value.split(",")) {
                     String[] vals = pair.trim().split(":");
+                    if (vals.length != 2 && vals.length != 4 && vals.length != 5) {
+                        throw new IllegalArgumentException("Wrong number of fields in " + pair);
+                    }
+                    for (int i = 1; i < vals.length; i++) {
+                        if (Integer.parseInt(vals[i]) <= 0) {
+                            throw new IllegalArgumentException("Non-positive value in " + pair);
+                        }
+                    }
                     mHosts.add(new Pair(vals[0], Integer.valueOf(vals[1])));
+                    if (vals.length >= 4) {
+                        mHostShapes.put(vals[0], new Pair(Integer.valueOf(vals[2]), Integer.valueOf(vals[3])));
+                    }
                 }
             } catch (Exception e) {
                 throw new IllegalArgumentException(
-                    "Illegal hosts specified. Format should be `host1:num1,host2:num2,...`. Specified hosts: " + value, e);
+                    "Illegal hosts specified. Format should be `host1:num1[:memory1:vcores1[:threads1]],host2:num2,...`. Specified hosts: " + value, e);
             }
+            mHostsSpec = value.replaceAll("\\s", "");
         }
 
         if (cliParser.hasOption("num_process")) {
@@ -165,11 +222,81 @@ public class NaiadYarnClient {
                 "Illegal port specified. Specified port: " + mPort);
         }
 
+        if (mNodeLabel != null && !mHosts.isEmpty()) {
+            throw new IllegalArgumentException("`node_label` cannot be used together with `hosts`.");
+        }
+
+        if (cliParser.hasOption("profile_store")) {
+            String value = cliParser.getOptionValue("profile_store");
+            mProfileStore = value == null || value.isEmpty() ? mLocalResourceHDFSPaths + "/profiles" : value;
+        }
+        if (cliParser.hasOption("auto_size")) {
+            if (mProfileStore == null) {
+                throw new IllegalArgumentException("`auto_size` needs `profile_store` to find the recorded resource usage.");
+            }
+            double percentile = Double.parseDouble(cliParser.getOptionValue("auto_size_percentile", "95"));
+            if (!(percentile > 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("Illegal percentile specified. Specified percentile: " + percentile);
+            }
+            double headroom = Double.parseDouble(cliParser.getOptionValue("auto_size_headroom", "0.2"));
+            if (headroom < 0) {
+                throw new IllegalArgumentException("Illegal headroom specified. Specified headroom: " + headroom);
+            }
+            autoSize(percentile, headroom);
+        }
+
+        mIsAot = cliParser.hasOption("aot");
+        if (mIsAot) {
+            mMono = cliParser.getOptionValue("mono", mMono);
+            if (cliParser.hasOption("aot_assemblies")) {
+                for (String path : cliParser.getOptionValue("aot_assemblies").split(",")) {
+                    File file = new File(path.trim());
+                    if (!file.isFile()) {
+                        throw new IllegalArgumentException("Assembly to compile ahead of time does not exist: " + path);
+                    }
+                    mAotAssemblies.add(file);
+                }
+            } else {
+                mAotAssemblies.addAll(NaiadAotCache.assembliesOf(mProgram));
+            }
+            if (mAotAssemblies.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "No assembly is found in the program to compile ahead of time. Please specify `aot_assemblies`.");
+            }
+        }
+
         mIsTest = cliParser.hasOption("test");
+        if (mIsRendezvous && mIsTest) {
+            throw new IllegalArgumentException("`rendezvous` cannot be used together with `test`.");
+        }
 
         return true;
     }
 
+    /**
+     * Pick the memory and virtual cores of worker containers from the recorded resource usage of the successful runs of
+     * the same program with the same number of threads.
+     */
+    private void autoSize(double percentile, double headroom) throws IOException {
+        NaiadProfileStore store = new NaiadProfileStore(mProfileStore, mYarnConf);
+        String key = NaiadProfileStore.keyOf(mProgram, mNumThreads);
+        List<Properties> records = NaiadProfileStore.succeeded(store.readAll(key));
+        if (records.isEmpty()) {
+            LOG.warning("No successful run is recorded for `" + mProgram + "` with " + mNumThreads + " threads in "
+                + mProfileStore + '/' + key
+                + ". Container size is not changed: " + mContainerMemory + " MB, " + mNumVirtualCores + " vcores");
+            return;
+        }
+
+        double rss = NaiadProfileStore.percentile(records, NaiadProfileStore.PEAK_RSS_MB, percentile);
+        double cores = NaiadProfileStore.percentile(records, NaiadProfileStore.CPU_CORES, percentile);
+        mContainerMemory = (int) Math.ceil(rss * (1 + headroom)) + LAUNCHER_MEMORY;
+        mNumVirtualCores = Math.max(1, (int) Math.ceil(cores * (1 + headroom)));
+        LOG.info("Container size is picked from " + records.size() + " records of `" + mProgram + "` with " + mNumThreads + " threads: "
+            + mContainerMemory + " MB (p" + percentile + " peak rss " + rss + " MB), " + mNumVirtualCores
+            + " vcores (p" + percentile + " cpu usage " + cores + " cores)");
+    }
+
     private Map<String, String> getEnvironment() {
         String[] paths = mYarnConf.getStrings(YARN_APPLICATION_CLASSPATH, DEFAULT_YARN_APPLICATION_CLASSPATH);
         StringBuilder classpath = new StringBuilder();
@@ -254,21 +381,63 @@ public class NaiadYarnClient {
         return new Pair<>(path, resource);
     }
 
+    private Path getAppResourceDir() {
+        return new Path(mLocalResourceHDFSPaths + '/' + mAppName + '/' + mAppId);
+    }
+
     private Map<String, LocalResource> getLocalResources() throws IOException {
         if (localResources == null) {
             localResources = new HashMap<>();
 
             Pair<String, LocalResource> resource = constructLocalResource("NaiadAppMaster.jar", mAppMasterJar, FILE);
             localResources.put("NaiadAppMaster.jar", resource.getSecond());
+            mAppMasterJarHDFSPath = resource.getFirst();
 
-            mFileSystem.deleteOnExit(new Path(mLocalResourceHDFSPaths + '/' + mAppName + '/' + mAppId));
+            // Until the application is submitted. After that, the application master deletes it if it needs the jar
+            mFileSystem.deleteOnExit(getAppResourceDir());
         }
         return localResources;
     }
 
+    /**
+     * In exclusive mode a host takes one container for all its processes, sized to the entire node. Check that the
+     * processes fit into the node, and pass the capability of each node to the application master to size the containers.
+     */
+    private void checkExclusiveHosts() throws YarnException, IOException {
+        HashMap<String, Resource> nodes = new HashMap<>();
+        for (NodeReport report : mYarnClient.getNodeReports(NodeState.RUNNING)) {
+            nodes.put(report.getNodeId().getHost(), report.getCapability());
+        }
+        StringBuilder spec = new StringBuilder();
+        for (Pair<String, Integer> pair : mHosts) {
+            Pair<Integer, Integer> shape = mHostShapes.get(pair.getFirst());
+            int memory = pair.getSecond() * (shape == null ? mContainerMemory : shape.getFirst());
+            int vcores = pair.getSecond() * (shape == null ? mNumVirtualCores : shape.getSecond());
+            Resource capability = nodes.get(pair.getFirst());
+            if (capability == null) {
+                LOG.warning("Host " + pair.getFirst() + " is not a running node, its exclusive container is sized to its processes");
+                continue;
+            }
+            if (memory > capability.getMemory() || vcores > capability.getVirtualCores()) {
+                throw new IllegalArgumentException("Illegal exclusive container specified. Host " + pair.getFirst()
+                    + " gets " + pair.getSecond() + " naiad processes which need " + memory + " MB, " + vcores
+                    + " vcores, more than the node capability " + capability);
+            }
+            spec.append(spec.length() == 0 ? "" : ",").append(pair.getFirst())
+                .append(':').append(capability.getMemory()).append(':').append(capability.getVirtualCores());
+        }
+        if (spec.length() > 0) {
+            mNodeCapabilitiesSpec = spec.toString();
+        }
+    }
+
     private boolean run() throws YarnException, IOException {
         mYarnClient.start();
 
+        if (mIsExclusive && !mHosts.isEmpty()) {
+            checkExclusiveHosts();
+        }
+
         YarnClientApplication app = mYarnClient.createApplication();
 
         ApplicationSubmissionContext appContext = app.getApplicationSubmissionContext();
@@ -281,6 +450,15 @@ public class NaiadYarnClient {
 
         mAppId = appContext.getApplicationId();
 
+        if (mIsAot) {
+            try {
+                NaiadAotCache cache = new NaiadAotCache(mFileSystem, mLocalResourceHDFSPaths + "/aot-cache");
+                mAotCache = cache.prepare(mMono, mAotAssemblies).toString();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while compiling AOT images", e);
+            }
+        }
+
         ContainerLaunchContext amContainer = Records.newRecord(ContainerLaunchContext.class);
         amContainer.setLocalResources(getLocalResources());
         amContainer.setEnvironment(getEnvironment());
@@ -299,14 +477,57 @@ public class NaiadYarnClient {
             .append(" --num_process ").append(mNumProcesses)
             .append(" --num_thread ").append(mNumThreads);
         if (!mHosts.isEmpty()) {
-            final StringBuilder builder = new StringBuilder();
-            for (Pair<String, Integer> pair : mHosts) {
-                if (builder.length() != 0) {
-                    builder.append(',');
-                }
-                builder.append(pair.getFirst()).append(':').append(pair.getSecond());
+            cmdBuilder.append(" --hosts ").append(mHostsSpec);
+        }
+        if (mProfileStore != null) {
+            cmdBuilder.append(" --profile_store ").append(mProfileStore);
+        }
+        if (mProfileStore != null || mIsRendezvous) {
+            // Worker containers localize the jar until the application finishes, which may be long after the client exits
+            cmdBuilder.append(" --app_master_jar ").append(mAppMasterJarHDFSPath)
+                .append(" --app_resource_dir ").append(getAppResourceDir());
+        }
+        if (mIsRendezvous) {
+            cmdBuilder.append(" --rendezvous");
+        }
+        if (mIsProbe) {
+            cmdBuilder.append(" --probe");
+            if (mProbeBytes != null) {
+                cmdBuilder.append(" --probe_bytes ").append(mProbeBytes);
+            }
+            if (mProbeThreshold != null) {
+                cmdBuilder.append(" --probe_threshold ").append(mProbeThreshold);
+            }
+            if (mProbeRounds != null) {
+                cmdBuilder.append(" --probe_rounds ").append(mProbeRounds);
+            }
+        }
+        if (mIsElastic) {
+            cmdBuilder.append(" --elastic");
+            if (mMinProcesses != null) {
+                cmdBuilder.append(" --min_process ").append(mMinProcesses);
+            }
+            if (mMaxProcesses != null) {
+                cmdBuilder.append(" --max_process ").append(mMaxProcesses);
+            }
+            if (mScaleInterval != null) {
+                cmdBuilder.append(" --scale_interval ").append(mScaleInterval);
+            }
+            if (mStopTimeout != null) {
+                cmdBuilder.append(" --stop_timeout ").append(mStopTimeout);
+            }
+        }
+        if (mAotCache != null) {
+            cmdBuilder.append(" --aot_cache ").append(mAotCache);
+        }
+        if (mNodeLabel != null) {
+            cmdBuilder.append(" --node_label '").append(mNodeLabel).append('\'');
+        }
+        if (mIsExclusive) {
+            cmdBuilder.append(" --exclusive");
+            if (mNodeCapabilitiesSpec != null) {
+                cmdBuilder.append(" --node_capabilities ").append(mNodeCapabilitiesSpec);
             }
-            cmdBuilder.append(" --hosts ").append(builder.toString());
         }
         if (mIsTest) {
             cmdBuilder.append(" --test");
@@ -321,6 +542,9 @@ public class NaiadYarnClient {
         appContext.setAMContainerSpec(amContainer);
 
         mYarnClient.submitApplication(appContext);
+        if (mProfileStore != null || mIsRendezvous) {
+            mFileSystem.cancelDeleteOnExit(getAppResourceDir());
+        }
 
         return monitorApp();
     }
@@ -343,17 +567,52 @@ public class NaiadYarnClient {
             "Amount of memory in MB to be requested to run container. Each container is a worker node.");
         opts.addOption("container_vcores", true, "Number of virtual cores that a container can use");
         opts.addOption("app_priority", true, "A number to indicate the priority of the husky application");
+        opts.addOption("node_label", true, "Node label expression that the nodes of worker containers must satisfy");
+        opts.addOption("exclusive", false,
+            "If given, each worker container takes an entire node and runs all the naiad processes of that node");
+        opts.addOption("rendezvous", false,
+            "If given, each worker container is launched as soon as it is allocated and its naiad processes wait for the peers from application master");
+        opts.addOption("probe", false,
+            "If given, the links between hosts are probed before naiad starts and slow hosts are replaced. Needs `rendezvous`");
+        opts.addOption("probe_bytes", true, "Number of bytes sent over each link to measure its bandwidth. Default to 4194304");
+        opts.addOption("probe_threshold", true,
+            "A host is slow if the median latency or bandwidth of its links is this many times worse than that of a typical host. Default to 2");
+        opts.addOption("probe_rounds", true,
+            "Maximum number of probe rounds. Slow hosts found in the last round are kept. Default to 2");
+        opts.addOption("elastic", false,
+            "If given, the naiad processes are stopped at a checkpoint and relaunched with more or fewer processes when their cpu load is high or low. Needs `rendezvous`");
+        opts.addOption("min_process", true, "Minimum number of naiad processes in elastic mode. Default to num_process");
+        opts.addOption("max_process", true, "Maximum number of naiad processes in elastic mode. Default to num_process");
+        opts.addOption("scale_interval", true,
+            "Minimum number of seconds between the start of the naiad processes and a rescaling in elastic mode. Default to 300");
+        opts.addOption("stop_timeout", true,
+            "Number of seconds the naiad processes have to stop at a checkpoint in elastic mode before the application fails. Default to 600");
 
         opts.addOption("program", true, "Location of naiad executable");
         opts.addOption("port", true, "A starting port for naiad process. The port value will be increased automatically for the processes in the same host");
         opts.addOption("num_process", true,
             "Number of naiad processes. Either num_process or hosts should be declared");
         opts.addOption("hosts", true,
-            "Desired hosts and number of processes of each host. Format(split by comma): host1:num1,host2:num2,host3:num3,... Either num_process or hosts should be declared");
+            "Desired hosts and number of processes of each host, optionally with the container memory, vcores and threads per process of the host. "
+                + "Format(split by comma): host1:num1[:memory1:vcores1[:threads1]],host2:num2,... Either num_process or hosts should be declared");
         opts.addOption("num_thread", true, "Number of threads in each naiad process");
 
         opts.addOption("local_resource_dir", true, "Where to store resources so that containers can access");
 
+        Option profileStore = new Option("profile_store", true,
+            "Directory to record the resource usage of naiad processes. Default to `local_resource_dir`/profiles if given without value");
+        profileStore.setOptionalArg(true);
+        opts.addOption(profileStore);
+        opts.addOption("aot", false,
+            "If given, the assemblies of the program are compiled ahead of time once and the images are localized to worker containers");
+        opts.addOption("aot_assemblies", true,
+            "Assemblies to compile ahead of time, split by comma. Default to the assemblies in `program` and the dlls next to them");
+        opts.addOption("mono", true, "The mono used to compile the assemblies ahead of time. Default to `mono`");
+        opts.addOption("auto_size", false,
+            "If given, container_memory and container_vcores are picked from the resource usage recorded in `profile_store`");
+        opts.addOption("auto_size_percentile", true, "Percentile of the recorded usage used by auto_size. Default to 95");
+        opts.addOption("auto_size_headroom", true, "Fraction added on top of the recorded usage by auto_size. Default to 0.2");
+
         opts.addOption("log_dir", true, "Directory to store logs of application master and worker containers");
         opts.addOption("test", false,
             "If given, containers will be requested and created, naiad program will not run but the command to run the program will be written to stdout.");
@@ -0,0 +1,153 @@
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic node managers used by {@link NaiadSimulator}. Nothing is executed, the launch is only recorded in the
+ * {@link SimulatedResourceManager} which then decides when the container completes. In rendezvous mode the launchers
+ * in the command are emulated, they register with the application master, answer link probes with synthetic numbers
+ * and wait for the peers. Once started, they report a fixed cpu load if one is given, every 10 seconds of simulated
+ * time, and stop at once when the application master rescales the gang.
+ */
+public class SimulatedNodeManager extends NMClientAsync {
+    private static final Logger LOG = Logger.getLogger(SimulatedNodeManager.class.getName());
+
+    // Synthetic links, 10 times worse if either end is a slow node
+    private static final long LINK_LATENCY_US = 100;
+    private static final long LINK_BANDWIDTH_MBPS = 10000;
+    private static final int SLOW_LINK_FACTOR = 10;
+
+    // Arguments of a NaiadContainerLauncher in rendezvous mode, as written by NaiadRMCallbackHandler
+    private static final Pattern RENDEZVOUS_LAUNCHER =
+        Pattern.compile("-rendezvous (\\S+) -container_id (\\S+) -index (\\d+) -port (\\d+)");
+
+    private final SimulatedResourceManager mRM;
+    private final long mProcessMilliCores;
+
+    SimulatedNodeManager(SimulatedResourceManager rm, CallbackHandler handler, double processLoad) {
+        super(SimulatedNodeManager.class.getName(), handler);
+        mRM = rm;
+        mProcessMilliCores = (long) (processLoad * 1000);
+    }
+
+    public void startContainerAsync(final Container container, ContainerLaunchContext ctx) {
+        final List<String[]> launchers = new ArrayList<>();
+        Matcher matcher = RENDEZVOUS_LAUNCHER.matcher(ctx.getCommands().get(0));
+        while (matcher.find()) {
+            launchers.add(new String[]{matcher.group(1), matcher.group(2), matcher.group(3), matcher.group(4)});
+        }
+        Runnable onLocalized = launchers.isEmpty() ? null : new Runnable() {
+            public void run() {
+                rendezvous(container.getId(), container.getNodeId().getHost(), launchers);
+            }
+        };
+        if (mRM.launch(container.getId(), onLocalized)) {
+            callbackHandler.onContainerStarted(container.getId(), Collections.<String, ByteBuffer>emptyMap());
+        } else {
+            callbackHandler.onStartContainerError(container.getId(),
+                new IllegalStateException("Container " + container.getId() + " is unknown or already launched"));
+        }
+    }
+
+    private String probeAll(String host, String[] command) {
+        StringBuilder builder = new StringBuilder(NaiadRendezvous.PROBED);
+        for (int i = 2; i < command.length; i++) {
+            String target = command[i].substring(0, command[i].lastIndexOf(':'));
+            boolean slow = mRM.isSlow(host) || mRM.isSlow(target);
+            builder.append(' ').append(command[i])
+                .append(':').append(slow ? LINK_LATENCY_US * SLOW_LINK_FACTOR : LINK_LATENCY_US)
+                .append(':').append(slow ? LINK_BANDWIDTH_MBPS / SLOW_LINK_FACTOR : LINK_BANDWIDTH_MBPS);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Register the naiad processes of a container as NaiadContainerLauncher does, and tell the RM once all of them
+     * get the peers. The connections are kept open until the application master closes them.
+     */
+    private void rendezvous(final ContainerId containerId, final String host, List<String[]> launchers) {
+        final AtomicInteger numWaiting = new AtomicInteger(launchers.size());
+        for (final String[] launcher : launchers) {
+            final NaiadRendezvousClient client;
+            try {
+                client = new NaiadRendezvousClient(launcher[0]);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Cannot connect to the rendezvous service at " + launcher[0], e);
+                continue;
+            }
+            client.register(launcher[1], Integer.parseInt(launcher[2]), Integer.parseInt(launcher[3]));
+            final String name = containerId + "-" + launcher[2];
+            Thread thread = new Thread("SimulatedNodeManager " + name) {
+                public void run() {
+                    try {
+                        boolean started = false;
+                        String[] command;
+                        while ((command = client.awaitCommand()) != null) {
+                            if (command[0].equals(NaiadRendezvous.PROBE)) {
+                                client.send(probeAll(host, command));
+                            } else if (command[0].equals(NaiadRendezvous.START)) {
+                                // Restarts after a rescaling take no simulated time
+                                if (!started && numWaiting.decrementAndGet() == 0) {
+                                    mRM.started(containerId);
+                                }
+                                started = true;
+                                if (mProcessMilliCores > 0) {
+                                    mRM.addLoadReporter(name, containerId, new Runnable() {
+                                        public void run() {
+                                            client.send(NaiadRendezvous.LOAD + ' ' + mProcessMilliCores);
+                                        }
+                                    });
+                                }
+                            } else if (command[0].equals(NaiadRendezvous.STOP)) {
+                                mRM.removeLoadReporter(name);
+                                client.send(NaiadRendezvous.STOPPED + " 0 " + launcher[3]);
+                            }
+                        }
+                    } catch (IOException ignore) {
+                    }
+                    mRM.removeLoadReporter(name);
+                    client.close();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void stopContainerAsync(ContainerId containerId, NodeId nodeId) {
+        mRM.kill(containerId);
+        callbackHandler.onContainerStopped(containerId);
+    }
+
+    /**
+     * Stopping the client stops all the containers it has started, as with NMClientImpl by default.
+     */
+    protected void serviceStop() throws Exception {
+        mRM.killAll();
+        super.serviceStop();
+    }
+
+    public void getContainerStatusAsync(ContainerId containerId, NodeId nodeId) {
+        ContainerStatus status = mRM.getContainerStatus(containerId);
+        if (status == null) {
+            callbackHandler.onGetContainerStatusError(containerId,
+                new IllegalStateException("Container " + containerId + " is unknown"));
+        } else {
+            callbackHandler.onContainerStatusReceived(containerId, status);
+        }
+    }
+}
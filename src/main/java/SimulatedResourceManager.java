@@ -0,0 +1,750 @@
+import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
+import org.apache.hadoop.yarn.api.records.*;
+import org.apache.hadoop.yarn.client.api.AMRMClient;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.apache.hadoop.yarn.util.Records;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * A synthetic resource manager used by {@link NaiadSimulator}. It owns a virtual clock that advances by one heartbeat
+ * interval per heartbeat, places container requests on the configured nodes and reports allocations and completions
+ * through the usual callback handler, so the application master runs unchanged against it.
+ */
+public class SimulatedResourceManager extends AMRMClientAsync<AMRMClient.ContainerRequest> {
+    private static final Logger LOG = Logger.getLogger(SimulatedResourceManager.class.getName());
+
+    // Real time to wait for the application master to react to a heartbeat before advancing the virtual clock
+    private static final int SETTLE_MS = 20;
+
+    static class SimNode {
+        final String host;
+        final int memory;
+        final int vcores;
+        final String label;
+        // Links from and to a slow node are reported worse by link probes, see SimulatedNodeManager
+        boolean slow = false;
+        // When the node turns unhealthy, after which it takes no containers and is lost `node_loss_delay` later
+        long unhealthyTime = -1;
+        boolean reportedUnhealthy = false;
+        boolean reportedLost = false;
+        int usedMemory = 0;
+        int usedVcores = 0;
+        int numContainers = 0;
+
+        SimNode(String host, int memory, int vcores, String label) {
+            this.host = host;
+            this.memory = memory;
+            this.vcores = vcores;
+            this.label = label == null ? "" : label;
+        }
+
+        boolean isUsable(long clock) {
+            return unhealthyTime < 0 || unhealthyTime > clock;
+        }
+
+        boolean fits(Resource capability) {
+            return memory - usedMemory >= capability.getMemory() && vcores - usedVcores >= capability.getVirtualCores();
+        }
+
+        boolean matches(AMRMClient.ContainerRequest request) {
+            // Requests without a label expression go to the nodes without label, as in the default partition
+            String expression = request.getNodeLabelExpression();
+            return label.equals(expression == null ? "" : expression.trim()) && fits(request.getCapability());
+        }
+    }
+
+    static class SimContainer {
+        final Container container;
+        final String requestedHost;
+        final long requestTime;
+        final long allocateTime;
+        // Drawn when the container is allocated on the heartbeat thread, so that a seed gives the same run whatever
+        // the order the callback and launcher threads call in
+        final long launchDelay;
+        final long failAfter;  // How long the processes run before they fail, or -1 if they do not fail
+        // When localization and the launchers are done, and the naiad processes start running
+        long localizeTime = -1;
+        long launchTime = -1;
+        long finishTime = -1;
+        int exitStatus = ContainerExitStatus.SUCCESS;
+        boolean reported = false;
+        boolean released = false;
+        // Run at `localizeTime` in rendezvous mode, where the processes start only once they get the peers
+        Runnable onLocalized = null;
+
+        SimContainer(Container container, String requestedHost, long requestTime, long allocateTime, long launchDelay,
+                     long failAfter) {
+            this.container = container;
+            this.requestedHost = requestedHost;
+            this.requestTime = requestTime;
+            this.allocateTime = allocateTime;
+            this.launchDelay = launchDelay;
+            this.failAfter = failAfter;
+        }
+    }
+
+    private static class LoadReporter {
+        final ContainerId containerId;
+        final Runnable report;
+
+        LoadReporter(ContainerId containerId, Runnable report) {
+            this.containerId = containerId;
+            this.report = report;
+        }
+    }
+
+    private static class PendingRequest {
+        final AMRMClient.ContainerRequest request;
+        final long requestTime;
+        final long readyTime;
+
+        PendingRequest(AMRMClient.ContainerRequest request, long requestTime, long readyTime) {
+            this.request = request;
+            this.requestTime = requestTime;
+            this.readyTime = readyTime;
+        }
+    }
+
+    private final LinkedHashMap<String, SimNode> mNodes = new LinkedHashMap<>();
+    private final List<PendingRequest> mPending = new ArrayList<>();
+    private final LinkedHashMap<ContainerId, SimContainer> mContainers = new LinkedHashMap<>();
+    private final HashSet<String> mBlacklist = new HashSet<>();
+
+    private final int mHeartbeatInterval;
+    private final long mAllocationDelay;
+    private final long mLaunchDelay;
+    private final double mLaunchJitter;
+    private final long mProcessStartDelay;
+    private final long mRunTime;
+    private final double mFailureRate;
+    private final String mPolicy;
+    private final long mMaxTime;
+    private final int mCallbackThreads;
+    private final long mNodeLossDelay;
+    private final long mShutdownTime;
+    private final Random mRandom;
+
+    private final ApplicationAttemptId mAttemptId =
+        ApplicationAttemptId.newInstance(ApplicationId.newInstance(System.currentTimeMillis(), 1), 1);
+    private long mNextContainerId = 1;
+
+    private long mClock = 0;
+    private int mNumLaunches = 0;
+    private int mNumStarts = 0;
+    // The last launchers register at this time, which is when the application master sends the peers
+    private long mLastLocalizeTime = 0;
+    private int mNumRequests = 0;
+    private int mNumReleases = 0;
+    // Emulated launchers of running naiad processes by name, which report their load every LOAD_INTERVAL_MS
+    private TreeMap<String, LoadReporter> mLoadReporters = new TreeMap<>();
+    private long mNextLoadTime = 0;
+    private Thread mHeartbeatThread = null;
+    private volatile boolean mStopped = false;
+
+    private boolean mShutdownSent = false;
+    private boolean mFinished = false;
+    private boolean mStalled = false;
+    private FinalApplicationStatus mFinalStatus = null;
+    private String mFinalMessage = "";
+    private long mFinishTime = -1;
+
+    SimulatedResourceManager(CallbackHandler handler, Collection<SimNode> nodes, int heartbeatInterval,
+                             long allocationDelay, long launchDelay, double launchJitter, long processStartDelay,
+                             long runTime, double failureRate, String policy, long maxTime, int callbackThreads,
+                             long nodeLossDelay, long shutdownTime, long seed) {
+        super(heartbeatInterval, handler);
+        for (SimNode node : nodes) {
+            mNodes.put(node.host, node);
+        }
+        mHeartbeatInterval = heartbeatInterval;
+        mAllocationDelay = allocationDelay;
+        mLaunchDelay = launchDelay;
+        mLaunchJitter = launchJitter;
+        mProcessStartDelay = processStartDelay;
+        mRunTime = runTime;
+        mFailureRate = failureRate;
+        mPolicy = policy;
+        mMaxTime = maxTime;
+        mCallbackThreads = callbackThreads;
+        mNodeLossDelay = nodeLossDelay;
+        mShutdownTime = shutdownTime;
+        mRandom = new Random(seed);
+    }
+
+    public RegisterApplicationMasterResponse registerApplicationMaster(String host, int port, String trackingUrl) {
+        Resource maximum = Records.newRecord(Resource.class);
+        for (SimNode node : mNodes.values()) {
+            maximum.setMemory(Math.max(maximum.getMemory(), node.memory));
+            maximum.setVirtualCores(Math.max(maximum.getVirtualCores(), node.vcores));
+        }
+        RegisterApplicationMasterResponse response = Records.newRecord(RegisterApplicationMasterResponse.class);
+        response.setMaximumResourceCapability(maximum);
+
+        mHeartbeatThread = new Thread("SimulatedResourceManager heartbeat") {
+            public void run() {
+                try {
+                    heartbeatLoop();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        };
+        mHeartbeatThread.setDaemon(true);
+        mHeartbeatThread.start();
+        return response;
+    }
+
+    public synchronized void unregisterApplicationMaster(FinalApplicationStatus status, String message, String url) {
+        mFinalStatus = status;
+        mFinalMessage = message;
+        mFinishTime = mClock;
+        mFinished = true;
+        mStopped = true;
+        notifyAll();
+    }
+
+    public synchronized void addContainerRequest(AMRMClient.ContainerRequest request) {
+        // Allocation delays are drawn uniformly from [0, 2 * allocation_delay]
+        long delay = mAllocationDelay == 0 ? 0 : (long) (mRandom.nextDouble() * 2 * mAllocationDelay);
+        mPending.add(new PendingRequest(request, mClock, mClock + delay));
+        mNumRequests += 1;
+    }
+
+    public synchronized void removeContainerRequest(AMRMClient.ContainerRequest request) {
+        for (Iterator<PendingRequest> it = mPending.iterator(); it.hasNext(); ) {
+            if (it.next().request == request) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    public synchronized void releaseAssignedContainer(ContainerId containerId) {
+        SimContainer container = mContainers.get(containerId);
+        mNumReleases += 1;
+        if (container != null) {
+            container.released = true;
+            if (container.finishTime < 0) {
+                container.finishTime = mClock;
+                container.exitStatus = ContainerExitStatus.ABORTED;
+            }
+        }
+    }
+
+    /**
+     * Called by {@link NaiadSimulator} for the application master, as the async client of hadoop 2.6 cannot update
+     * the blacklist.
+     */
+    synchronized void updateBlacklist(List<String> additions, List<String> removals) {
+        if (additions != null) {
+            mBlacklist.addAll(additions);
+        }
+        if (removals != null) {
+            mBlacklist.removeAll(removals);
+        }
+    }
+
+    synchronized boolean isSlow(String host) {
+        SimNode node = mNodes.get(host);
+        return node != null && node.slow;
+    }
+
+    public synchronized Resource getAvailableResources() {
+        Resource available = Records.newRecord(Resource.class);
+        for (SimNode node : mNodes.values()) {
+            available.setMemory(available.getMemory() + node.memory - node.usedMemory);
+            available.setVirtualCores(available.getVirtualCores() + node.vcores - node.usedVcores);
+        }
+        return available;
+    }
+
+    public int getClusterNodeCount() {
+        return mNodes.size();
+    }
+
+    public List<? extends Collection<AMRMClient.ContainerRequest>> getMatchingRequests(Priority priority,
+                                                                                       String resourceName,
+                                                                                       Resource capability) {
+        return Collections.emptyList();
+    }
+
+    protected void serviceStop() throws Exception {
+        mStopped = true;
+        synchronized (this) {
+            if (!mFinished) {
+                // Application master stops without unregistering after a shutdown request
+                mFinalStatus = FinalApplicationStatus.KILLED;
+                mFinalMessage = handler instanceof NaiadRMCallbackHandler
+                    ? ((NaiadRMCallbackHandler) handler).getStatusReport() : "";
+                mFinishTime = mClock;
+                mFinished = true;
+            }
+            notifyAll();
+        }
+        super.serviceStop();
+    }
+
+    /**
+     * Called by {@link SimulatedNodeManager} when the application master starts a container. In rendezvous mode
+     * `onLocalized` is run once the launchers are up, and the processes start when {@link #started} is called.
+     */
+    synchronized boolean launch(ContainerId containerId, Runnable onLocalized) {
+        SimContainer container = mContainers.get(containerId);
+        if (container == null || container.localizeTime >= 0 || container.finishTime >= 0) {
+            return false;
+        }
+        container.localizeTime = mClock + container.launchDelay;
+        if (onLocalized == null) {
+            start(container, container.localizeTime);
+        } else {
+            container.onLocalized = onLocalized;
+        }
+        mNumLaunches += 1;
+        return true;
+    }
+
+    /**
+     * Called by {@link SimulatedNodeManager} when all the naiad processes of a container get their peers.
+     */
+    synchronized void started(ContainerId containerId) {
+        SimContainer container = mContainers.get(containerId);
+        if (container == null || container.launchTime >= 0 || container.finishTime >= 0) {
+            return;
+        }
+        start(container, mLastLocalizeTime);
+        mNumStarts += 1;
+    }
+
+    private void start(SimContainer container, long time) {
+        container.launchTime = time + mProcessStartDelay;
+        if (container.failAfter >= 0) {
+            container.finishTime = container.launchTime + container.failAfter;
+            container.exitStatus = 1;
+        } else {
+            container.finishTime = container.launchTime + mRunTime;
+        }
+    }
+
+    /**
+     * Called by {@link SimulatedNodeManager} when the application master stops a container.
+     */
+    synchronized void kill(ContainerId containerId) {
+        SimContainer container = mContainers.get(containerId);
+        if (container != null && !container.reported && (container.finishTime < 0 || container.finishTime > mClock)) {
+            container.finishTime = mClock;
+            container.exitStatus = ContainerExitStatus.KILLED_BY_APPMASTER;
+        }
+    }
+
+    /**
+     * Called by {@link SimulatedNodeManager} when it stops, which stops all the containers it has started.
+     */
+    synchronized void killAll() {
+        for (ContainerId containerId : mContainers.keySet()) {
+            if (mContainers.get(containerId).localizeTime >= 0) {
+                kill(containerId);
+            }
+        }
+    }
+
+    synchronized ContainerStatus getContainerStatus(ContainerId containerId) {
+        SimContainer container = mContainers.get(containerId);
+        if (container == null) {
+            return null;
+        }
+        ContainerState state = container.reported ? ContainerState.COMPLETE : ContainerState.RUNNING;
+        return ContainerStatus.newInstance(containerId, state, "", container.exitStatus);
+    }
+
+    private void heartbeatLoop() throws InterruptedException {
+        // Let the application master send its requests after registration
+        boolean delivered = true;
+        while (!mStopped) {
+            if (delivered) {
+                awaitReaction();
+            }
+            List<ContainerStatus> completed;
+            List<Container> allocated;
+            List<Runnable> localized;
+            List<NodeReport> updated;
+            List<Runnable> loads;
+            boolean shutdown;
+            synchronized (this) {
+                mClock = nextHeartbeat();
+                updated = collectNodeUpdates();
+                completed = collectCompleted();
+                allocated = allocatePending();
+                localized = collectLocalized();
+                loads = collectLoads();
+                shutdown = !mShutdownSent && mShutdownTime >= 0 && mShutdownTime <= mClock;
+                mShutdownSent |= shutdown;
+            }
+            handler.getProgress();
+            for (Runnable onLocalized : localized) {
+                onLocalized.run();
+            }
+            for (Runnable load : loads) {
+                load.run();
+            }
+            if (!updated.isEmpty()) {
+                handler.onNodesUpdated(updated);
+            }
+            deliver(completed, allocated);
+            if (shutdown) {
+                handler.onShutdownRequest();
+            }
+            delivered = !completed.isEmpty() || !allocated.isEmpty() || !localized.isEmpty() || !updated.isEmpty()
+                || !loads.isEmpty() || shutdown;
+
+            synchronized (this) {
+                if (!mFinished && mClock >= mMaxTime) {
+                    LOG.severe("Simulation does not finish within " + mMaxTime + " ms of simulated time. "
+                        + mPending.size() + " container requests are still pending.");
+                    mStalled = true;
+                    mFinished = true;
+                    mStopped = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void deliver(List<ContainerStatus> completed, List<Container> allocated) throws InterruptedException {
+        if (mCallbackThreads <= 1) {
+            if (!completed.isEmpty()) {
+                handler.onContainersCompleted(completed);
+            }
+            if (!allocated.isEmpty()) {
+                handler.onContainersAllocated(allocated);
+            }
+            return;
+        }
+
+        // Stress the application master with one callback per container from several threads at the same time
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < mCallbackThreads; t++) {
+            final List<ContainerStatus> threadCompleted = new ArrayList<>();
+            for (int i = t; i < completed.size(); i += mCallbackThreads) {
+                threadCompleted.add(completed.get(i));
+            }
+            final List<Container> threadAllocated = new ArrayList<>();
+            for (int i = t; i < allocated.size(); i += mCallbackThreads) {
+                threadAllocated.add(allocated.get(i));
+            }
+            Thread thread = new Thread("SimulatedResourceManager callback " + t) {
+                public void run() {
+                    for (ContainerStatus status : threadCompleted) {
+                        handler.onContainersCompleted(Collections.singletonList(status));
+                    }
+                    for (Container container : threadAllocated) {
+                        handler.onContainersAllocated(Collections.singletonList(container));
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Wait until the application master stops sending requests and launching containers, and the naiad processes
+     * stop starting. The reaction of the application master to a heartbeat is thus regarded as instantaneous in
+     * virtual time.
+     */
+    private void awaitReaction() throws InterruptedException {
+        int last = -1;
+        while (!mStopped) {
+            if (handler instanceof NaiadRMCallbackHandler) {
+                ((NaiadRMCallbackHandler) handler).drain();
+            }
+            int current;
+            synchronized (this) {
+                current = mNumLaunches + mNumRequests + mNumStarts + mNumReleases;
+            }
+            if (current == last) {
+                return;
+            }
+            last = current;
+            Thread.sleep(SETTLE_MS);
+        }
+    }
+
+    /**
+     * Skip the heartbeats in which nothing can happen.
+     */
+    private long nextHeartbeat() {
+        long next = Long.MAX_VALUE;
+        for (PendingRequest pending : mPending) {
+            if (pending.readyTime > mClock) {
+                next = Math.min(next, pending.readyTime);
+            }
+        }
+        for (SimContainer container : mContainers.values()) {
+            if (container.localizeTime < 0 && container.finishTime < 0) {
+                // Allocated but not launched yet
+                next = Math.min(next, mClock);
+            } else if (container.onLocalized != null && container.finishTime < 0) {
+                next = Math.min(next, container.localizeTime);
+            } else if (container.finishTime >= 0 && !container.reported) {
+                next = Math.min(next, container.finishTime);
+            }
+        }
+        for (SimNode node : mNodes.values()) {
+            if (node.unhealthyTime >= 0 && !node.reportedUnhealthy) {
+                next = Math.min(next, node.unhealthyTime);
+            } else if (node.unhealthyTime >= 0 && !node.reportedLost) {
+                next = Math.min(next, node.unhealthyTime + mNodeLossDelay);
+            }
+        }
+        if (mShutdownTime >= 0 && !mShutdownSent) {
+            next = Math.min(next, mShutdownTime);
+        }
+        if (!mLoadReporters.isEmpty()) {
+            next = Math.min(next, mNextLoadTime);
+        }
+        if (next == Long.MAX_VALUE) {
+            return mClock + mHeartbeatInterval;
+        }
+        long numHeartbeats = Math.max(1, (next - mClock + mHeartbeatInterval - 1) / mHeartbeatInterval);
+        return mClock + numHeartbeats * mHeartbeatInterval;
+    }
+
+    /**
+     * Report the nodes that turn unhealthy or are lost. The containers on a lost node complete at once.
+     */
+    private List<NodeReport> collectNodeUpdates() {
+        List<NodeReport> updated = new ArrayList<>();
+        for (SimNode node : mNodes.values()) {
+            NodeState state = null;
+            if (node.unhealthyTime >= 0 && !node.reportedUnhealthy && node.unhealthyTime <= mClock) {
+                node.reportedUnhealthy = true;
+                state = NodeState.UNHEALTHY;
+            }
+            if (node.unhealthyTime >= 0 && !node.reportedLost && node.unhealthyTime + mNodeLossDelay <= mClock) {
+                node.reportedLost = true;
+                state = NodeState.LOST;
+                for (SimContainer container : mContainers.values()) {
+                    if (container.container.getNodeId().getHost().equals(node.host) && !container.reported
+                        && (container.finishTime < 0 || container.finishTime > mClock)) {
+                        container.finishTime = mClock;
+                        container.exitStatus = ContainerExitStatus.ABORTED;
+                    }
+                }
+            }
+            if (state != null) {
+                Resource capability = Resource.newInstance(node.memory, node.vcores);
+                Resource used = Resource.newInstance(node.usedMemory, node.usedVcores);
+                updated.add(NodeReport.newInstance(NodeId.newInstance(node.host, 45454), state, node.host + ":8042",
+                    "/default-rack", used, capability, node.numContainers, state + " in simulation", mClock));
+            }
+        }
+        return updated;
+    }
+
+    private List<ContainerStatus> collectCompleted() {
+        List<ContainerStatus> completed = new ArrayList<>();
+        for (SimContainer container : mContainers.values()) {
+            if (!container.reported && container.finishTime >= 0 && container.finishTime <= mClock) {
+                container.reported = true;
+                SimNode node = mNodes.get(container.container.getNodeId().getHost());
+                node.usedMemory -= container.container.getResource().getMemory();
+                node.usedVcores -= container.container.getResource().getVirtualCores();
+                completed.add(ContainerStatus.newInstance(container.container.getId(), ContainerState.COMPLETE, "",
+                    container.exitStatus));
+            }
+        }
+        return completed;
+    }
+
+    private List<Runnable> collectLocalized() {
+        List<Runnable> localized = new ArrayList<>();
+        for (SimContainer container : mContainers.values()) {
+            if (container.onLocalized != null && container.localizeTime <= mClock) {
+                if (container.finishTime < 0) {
+                    localized.add(container.onLocalized);
+                    mLastLocalizeTime = Math.max(mLastLocalizeTime, container.localizeTime);
+                }
+                container.onLocalized = null;
+            }
+        }
+        return localized;
+    }
+
+    private List<Container> allocatePending() {
+        List<Container> allocated = new ArrayList<>();
+        for (Iterator<PendingRequest> it = mPending.iterator(); it.hasNext(); ) {
+            PendingRequest pending = it.next();
+            if (pending.readyTime > mClock) {
+                continue;
+            }
+            SimNode node = place(pending.request);
+            if (node == null) {
+                continue;
+            }
+            it.remove();
+
+            Resource capability = pending.request.getCapability();
+            node.usedMemory += capability.getMemory();
+            node.usedVcores += capability.getVirtualCores();
+            node.numContainers += 1;
+
+            Container container = Container.newInstance(ContainerId.newContainerId(mAttemptId, mNextContainerId++),
+                NodeId.newInstance(node.host, 45454), node.host + ":8042", capability, pending.request.getPriority(),
+                null);
+            List<String> requestedNodes = pending.request.getNodes();
+            String requestedHost = requestedNodes == null || requestedNodes.isEmpty() ? null : requestedNodes.get(0);
+            // Launch delays are drawn uniformly from [launch_delay * (1 - jitter), launch_delay * (1 + jitter)]
+            long launchDelay = mLaunchDelay + (long) ((mRandom.nextDouble() * 2 - 1) * mLaunchJitter * mLaunchDelay);
+            long failAfter = mRandom.nextDouble() < mFailureRate ? (long) (mRandom.nextDouble() * mRunTime) : -1;
+            mContainers.put(container.getId(),
+                new SimContainer(container, requestedHost, pending.requestTime, mClock, launchDelay, failAfter));
+            allocated.add(container);
+        }
+        return allocated;
+    }
+
+    private SimNode place(AMRMClient.ContainerRequest request) {
+        List<SimNode> candidates = new ArrayList<>();
+        if (request.getNodes() != null) {
+            for (String host : request.getNodes()) {
+                SimNode node = mNodes.get(host);
+                if (node != null && !mBlacklist.contains(host) && node.isUsable(mClock) && node.fits(request.getCapability())) {
+                    candidates.add(node);
+                }
+            }
+        }
+        if (candidates.isEmpty() && (request.getNodes() == null || request.getNodes().isEmpty()
+            || request.getRelaxLocality())) {
+            for (SimNode node : mNodes.values()) {
+                if (!mBlacklist.contains(node.host) && node.isUsable(mClock) && node.matches(request)) {
+                    candidates.add(node);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        SimNode chosen = candidates.get(0);
+        switch (mPolicy) {
+            case "random":
+                chosen = candidates.get(mRandom.nextInt(candidates.size()));
+                break;
+            case "pack":
+                for (SimNode node : candidates) {
+                    if (node.memory - node.usedMemory < chosen.memory - chosen.usedMemory) {
+                        chosen = node;
+                    }
+                }
+                break;
+            default:  // spread
+                for (SimNode node : candidates) {
+                    if (node.memory - node.usedMemory > chosen.memory - chosen.usedMemory) {
+                        chosen = node;
+                    }
+                }
+        }
+        return chosen;
+    }
+
+    /**
+     * Block until the application master unregisters or the simulation hits its time limit.
+     */
+    synchronized void awaitFinish() throws InterruptedException {
+        while (!mFinished) {
+            wait();
+        }
+    }
+
+    synchronized boolean isStalled() {
+        return mStalled;
+    }
+
+    synchronized FinalApplicationStatus getFinalStatus() {
+        return mFinalStatus;
+    }
+
+    synchronized String getFinalMessage() {
+        return mFinalMessage;
+    }
+
+    synchronized long getFinishTime() {
+        return mFinishTime;
+    }
+
+    /**
+     * Called by {@link SimulatedNodeManager} when an emulated naiad process starts running, so that it reports its load
+     * every {@link NaiadContainerLauncher#LOAD_INTERVAL_MS} of simulated time until it is removed or its container
+     * completes.
+     */
+    synchronized void addLoadReporter(String name, ContainerId containerId, Runnable report) {
+        if (mLoadReporters.isEmpty()) {
+            mNextLoadTime = mClock + NaiadContainerLauncher.LOAD_INTERVAL_MS;
+        }
+        mLoadReporters.put(name, new LoadReporter(containerId, report));
+    }
+
+    synchronized void removeLoadReporter(String name) {
+        mLoadReporters.remove(name);
+    }
+
+    private List<Runnable> collectLoads() {
+        List<Runnable> loads = new ArrayList<>();
+        if (mLoadReporters.isEmpty() || mClock < mNextLoadTime) {
+            return loads;
+        }
+        for (LoadReporter reporter : mLoadReporters.values()) {
+            SimContainer container = mContainers.get(reporter.containerId);
+            if (container != null && (container.finishTime < 0 || container.finishTime > mClock)) {
+                loads.add(reporter.report);
+            }
+        }
+        mNextLoadTime = mClock + NaiadContainerLauncher.LOAD_INTERVAL_MS;
+        return loads;
+    }
+
+    synchronized long getClock() {
+        return mClock;
+    }
+
+    /**
+     * Number of completions reported for containers that the application master did not release.
+     */
+    synchronized int getNumReportedCompletions() {
+        int num = 0;
+        for (SimContainer container : mContainers.values()) {
+            if (container.reported && !container.released) {
+                num += 1;
+            }
+        }
+        return num;
+    }
+
+    synchronized List<String> getBlacklist() {
+        return new ArrayList<>(mBlacklist);
+    }
+
+    synchronized int getNumPending() {
+        return mPending.size();
+    }
+
+    synchronized List<SimContainer> getContainers() {
+        return new ArrayList<>(mContainers.values());
+    }
+
+    synchronized List<SimNode> getNodes() {
+        return new ArrayList<>(mNodes.values());
+    }
+}
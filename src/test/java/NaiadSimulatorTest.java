@@ -0,0 +1,85 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the application master against the synthetic RM of {@link NaiadSimulator}, which takes no cluster.
+ */
+public class NaiadSimulatorTest {
+    @Rule
+    public TemporaryFolder mLogDir = new TemporaryFolder();
+
+    private NaiadSimulator newSimulator(String[] cluster, String... appMaster) throws Exception {
+        String[] args = new String[cluster.length + 5 + appMaster.length];
+        System.arraycopy(cluster, 0, args, 0, cluster.length);
+        String[] common = {"--", "-app_master_log_dir", mLogDir.getRoot().getPath(), "-program", "mono"};
+        System.arraycopy(common, 0, args, cluster.length, common.length);
+        System.arraycopy(appMaster, 0, args, cluster.length + common.length, appMaster.length);
+        NaiadSimulator simulator = new NaiadSimulator();
+        assertTrue(simulator.init(args));
+        return simulator;
+    }
+
+    private static void assertNoCompletionLost(NaiadSimulator simulator, int numProcesses) {
+        SimulatedResourceManager rm = simulator.getResourceManager();
+        assertFalse(rm.isStalled());
+        assertEquals(numProcesses, simulator.getHandler().getNumCompletedContainers());
+        assertEquals(rm.getNumReportedCompletions(), simulator.getHandler().getNumCompletedContainers());
+    }
+
+    /**
+     * Completions delivered by many callback threads at once must all be counted, or the application master waits for
+     * containers that have long completed and the run stalls.
+     */
+    @Test(timeout = 300000)
+    public void testCompletionsCountedWithConcurrentCallbacks() throws Exception {
+        NaiadSimulator simulator = newSimulator(new String[]{
+            "-num_nodes", "500", "-node_memory", "16384", "-node_vcores", "16", "-callback_threads", "32"},
+            "-num_process", "4000");
+        assertTrue(simulator.run());
+        assertNoCompletionLost(simulator, 4000);
+    }
+
+    /**
+     * Failed processes complete the application as failed, but their completions must still be counted.
+     */
+    @Test(timeout = 300000)
+    public void testCompletionsCountedWithFailures() throws Exception {
+        NaiadSimulator simulator = newSimulator(new String[]{
+            "-num_nodes", "500", "-node_memory", "16384", "-node_vcores", "16", "-callback_threads", "32",
+            "-failure_rate", "0.05"},
+            "-num_process", "4000");
+        assertFalse(simulator.run());
+        assertNoCompletionLost(simulator, 4000);
+    }
+
+    /**
+     * In rendezvous mode the launchers register with the rendezvous service from many containers at once while the
+     * callbacks are delivered concurrently.
+     */
+    @Test(timeout = 300000)
+    public void testRendezvousCompletionsCountedWithConcurrentCallbacks() throws Exception {
+        NaiadSimulator simulator = newSimulator(new String[]{
+            "-num_nodes", "200", "-node_memory", "16384", "-node_vcores", "16", "-callback_threads", "32"},
+            "-num_process", "1000", "-rendezvous", "-app_master_jar", "none");
+        assertTrue(simulator.run());
+        assertNoCompletionLost(simulator, 1000);
+    }
+
+    /**
+     * Processes failing in rendezvous mode fail the gang, but every completion must still be counted.
+     */
+    @Test(timeout = 300000)
+    public void testRendezvousCompletionsCountedWithFailures() throws Exception {
+        NaiadSimulator simulator = newSimulator(new String[]{
+            "-num_nodes", "200", "-node_memory", "16384", "-node_vcores", "16", "-callback_threads", "32",
+            "-failure_rate", "0.05"},
+            "-num_process", "1000", "-rendezvous", "-app_master_jar", "none");
+        assertFalse(simulator.run());
+        assertNoCompletionLost(simulator, 1000);
+    }
+}